@@ -0,0 +1,11 @@
+package org.github.sipuada.plugins.admission;
+
+import org.github.sipuada.plugins.SipuadaPlugin;
+
+public interface AdmissionControlledSipuadaPlugin extends SipuadaPlugin {
+
+	void setAdmissionController(AdmissionController admissionController);
+
+	AdmissionController getAdmissionController();
+
+}
@@ -0,0 +1,231 @@
+package org.github.sipuada.plugins.admission;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.sipuada.plugins.metrics.PluginMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether a plugin should take on a new call given its resource budgets.
+ * <p>
+ * Live calls and ports are accounted for by the controller itself as calls are
+ * admitted and released. Agents and streams are read from gauges supplied by the
+ * plugin. Setup latency is tracked as an exponentially weighted moving average of
+ * the time the plugin itself spends setting up a call, from the answer it generates
+ * or receives until session setup, so a remote party ringing for a while does not
+ * count against it. Once the average exceeds its budget, new calls are shed with a
+ * probability proportional to the excess, so admitted calls keep feeding the
+ * average and the controller recovers as soon as latency does.
+ * A budget of zero means the resource is not limited.
+ */
+public class AdmissionController {
+
+	private final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+	public enum Resource {
+		LIVE_CALLS,
+		PORTS,
+		AGENTS,
+		STREAMS
+	}
+
+	public interface RejectionListener {
+
+		void onRejection(String callId, AdmissionDecision decision);
+
+	}
+
+	private static final double LATENCY_SMOOTHING = 0.1;
+
+	class Admission {
+		final AtomicLong setupStartedAtNanos = new AtomicLong();
+		final int ports;
+		final AtomicBoolean setUp = new AtomicBoolean();
+		Admission(int ports) {
+			this.ports = ports;
+		}
+	}
+	private final Map<String, Admission> admissions = new ConcurrentHashMap<>();
+
+	private final Map<Resource, AtomicLong> budgets = new EnumMap<>(Resource.class);
+	private volatile Map<Resource, PluginMetrics.Gauge> gauges = new EnumMap<>(Resource.class);
+	private final AtomicLong liveCalls = new AtomicLong();
+	private final AtomicLong reservedPorts = new AtomicLong();
+	private volatile long setupLatencyBudgetNanos = 0;
+	private volatile double setupLatencyAverageNanos = 0;
+	private final Map<AdmissionDecision, AtomicLong> decisions = new EnumMap<>(AdmissionDecision.class);
+	private volatile RejectionListener rejectionListener;
+
+	public AdmissionController() {
+		for (Resource resource : Resource.values()) {
+			budgets.put(resource, new AtomicLong());
+		}
+		for (AdmissionDecision decision : AdmissionDecision.values()) {
+			decisions.put(decision, new AtomicLong());
+		}
+	}
+
+	public AdmissionController setBudget(Resource resource, long budget) {
+		budgets.get(resource).set(Math.max(0, budget));
+		return this;
+	}
+
+	public synchronized AdmissionController setGauge(Resource resource, PluginMetrics.Gauge gauge) {
+		Map<Resource, PluginMetrics.Gauge> updated = new EnumMap<>(gauges);
+		updated.put(resource, gauge);
+		gauges = updated;
+		return this;
+	}
+
+	public AdmissionController setSetupLatencyBudget(long budget, TimeUnit unit) {
+		setupLatencyBudgetNanos = unit.toNanos(budget);
+		return this;
+	}
+
+	public void setRejectionListener(RejectionListener rejectionListener) {
+		this.rejectionListener = rejectionListener;
+	}
+
+	/**
+	 * Admits a new call reserving the given number of ports, or tells why it
+	 * must be rejected. Calls that were already admitted are admitted again
+	 * without reserving anything, so in-dialog requests are never rejected.
+	 */
+	public AdmissionDecision admit(String callId, int ports) {
+		if (admissions.containsKey(callId)) {
+			return AdmissionDecision.ADMITTED;
+		}
+		AdmissionDecision decision = decide(ports);
+		if (decision.isAdmitted() && admissions.putIfAbsent(callId, new Admission(ports)) != null) {
+			liveCalls.decrementAndGet();
+			reservedPorts.addAndGet(-ports);
+		}
+		decisions.get(decision).incrementAndGet();
+		if (!decision.isAdmitted()) {
+			RejectionListener listener = rejectionListener;
+			if (listener != null) {
+				try {
+					listener.onRejection(callId, decision);
+				} catch (Throwable anyIssue) {
+					logger.error("{} could not notify rejection of call {}.",
+						AdmissionController.class.getSimpleName(), callId, anyIssue);
+				}
+			}
+		}
+		return decision;
+	}
+
+	private AdmissionDecision decide(int ports) {
+		if (exceeds(Resource.AGENTS, gaugeValue(Resource.AGENTS) + 1)) {
+			return AdmissionDecision.AGENTS_EXHAUSTED;
+		}
+		if (exceeds(Resource.STREAMS, gaugeValue(Resource.STREAMS) + 1)) {
+			return AdmissionDecision.STREAMS_EXHAUSTED;
+		}
+		long latencyBudget = setupLatencyBudgetNanos;
+		double latencyAverage = setupLatencyAverageNanos;
+		if (latencyBudget > 0 && latencyAverage > latencyBudget && ThreadLocalRandom
+				.current().nextDouble() >= latencyBudget / latencyAverage) {
+			return AdmissionDecision.SETUP_LATENCY_EXCEEDED;
+		}
+		if (exceeds(Resource.LIVE_CALLS, liveCalls.incrementAndGet())) {
+			liveCalls.decrementAndGet();
+			return AdmissionDecision.LIVE_CALLS_EXHAUSTED;
+		}
+		if (exceeds(Resource.PORTS, reservedPorts.addAndGet(ports))) {
+			reservedPorts.addAndGet(-ports);
+			liveCalls.decrementAndGet();
+			return AdmissionDecision.PORTS_EXHAUSTED;
+		}
+		return AdmissionDecision.ADMITTED;
+	}
+
+	private boolean exceeds(Resource resource, long usage) {
+		long budget = budgets.get(resource).get();
+		return budget > 0 && usage > budget;
+	}
+
+	private long gaugeValue(Resource resource) {
+		PluginMetrics.Gauge gauge = gauges.get(resource);
+		return gauge == null ? 0 : gauge.read();
+	}
+
+	/**
+	 * Marks the moment the plugin starts setting up the call, which is when it
+	 * generates or receives the answer. Only the first mark of each call counts.
+	 */
+	public void setupStarted(String callId) {
+		Admission admission = admissions.get(callId);
+		if (admission != null) {
+			admission.setupStartedAtNanos.compareAndSet(0, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Feeds the time since the call's setup started into the setup latency average.
+	 * Only the first setup of each call is taken into account, and only if its
+	 * start was marked.
+	 */
+	public void setupCompleted(String callId) {
+		Admission admission = admissions.get(callId);
+		if (admission == null) {
+			return;
+		}
+		long startedAtNanos = admission.setupStartedAtNanos.get();
+		if (startedAtNanos == 0 || !admission.setUp.compareAndSet(false, true)) {
+			return;
+		}
+		long latency = System.nanoTime() - startedAtNanos;
+		synchronized (this) {
+			setupLatencyAverageNanos = setupLatencyAverageNanos == 0 ? latency
+				: setupLatencyAverageNanos + LATENCY_SMOOTHING
+				* (latency - setupLatencyAverageNanos);
+		}
+	}
+
+	public void release(String callId) {
+		Admission admission = admissions.remove(callId);
+		if (admission != null) {
+			liveCalls.decrementAndGet();
+			reservedPorts.addAndGet(-admission.ports);
+		}
+	}
+
+	public long getLiveCalls() {
+		return liveCalls.get();
+	}
+
+	public long getReservedPorts() {
+		return reservedPorts.get();
+	}
+
+	public long getSetupLatencyAverageNanos() {
+		return (long) setupLatencyAverageNanos;
+	}
+
+	public long getDecisions(AdmissionDecision decision) {
+		return decisions.get(decision).get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder rejections = new StringBuilder();
+		for (AdmissionDecision decision : AdmissionDecision.values()) {
+			if (!decision.isAdmitted()) {
+				rejections.append(rejections.length() == 0 ? "" : ", ")
+					.append(decision).append('=').append(getDecisions(decision));
+			}
+		}
+		return String.format("live=%d ports=%d setup=%.3fms admitted=%d rejected={%s}",
+			getLiveCalls(), getReservedPorts(), setupLatencyAverageNanos / 1e6,
+			getDecisions(AdmissionDecision.ADMITTED), rejections);
+	}
+
+}
@@ -0,0 +1,16 @@
+package org.github.sipuada.plugins.admission;
+
+public enum AdmissionDecision {
+
+	ADMITTED,
+	LIVE_CALLS_EXHAUSTED,
+	PORTS_EXHAUSTED,
+	AGENTS_EXHAUSTED,
+	STREAMS_EXHAUSTED,
+	SETUP_LATENCY_EXCEEDED;
+
+	public boolean isAdmitted() {
+		return this == ADMITTED;
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.github.sipuada.plugins.audio;
+
+import java.util.Locale;
+
+public class AudioCodec {
+
+	private final String encoding;
+	private final int type;
+	private final int clockRate;
+	private final boolean enabled;
+	private final int cpuCost;
+	private final int bitrate;
+	private final int packetRate;
+
+	/**
+	 * @param cpuCost relative cost of encoding and decoding one stream, where
+	 *  cheaper codecs have lower values.
+	 * @param bitrate in bits per second.
+	 * @param packetRate in packets per second.
+	 */
+	public AudioCodec(String encoding, int type, int clockRate, boolean enabled,
+			int cpuCost, int bitrate, int packetRate) {
+		this.encoding = encoding.toUpperCase(Locale.US);
+		this.type = type;
+		this.clockRate = clockRate;
+		this.enabled = enabled;
+		this.cpuCost = cpuCost;
+		this.bitrate = bitrate;
+		this.packetRate = packetRate;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public int getClockRate() {
+		return clockRate;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getCpuCost() {
+		return cpuCost;
+	}
+
+	public int getBitrate() {
+		return bitrate;
+	}
+
+	public int getPacketRate() {
+		return packetRate;
+	}
+
+	public String getRtpmap() {
+		return String.format(Locale.US, "%s/%d", encoding, clockRate);
+	}
+
+	public AudioCodec withEnabled(boolean enabled) {
+		return new AudioCodec(encoding, type, clockRate, enabled,
+			cpuCost, bitrate, packetRate);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof AudioCodec)) {
+			return false;
+		}
+		AudioCodec codec = (AudioCodec) other;
+		return encoding.equals(codec.encoding) && clockRate == codec.clockRate;
+	}
+
+	@Override
+	public int hashCode() {
+		return encoding.hashCode() * 31 + clockRate;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%s[type=%d, cpu=%d, %dbps, %dpps%s]",
+			getRtpmap(), type, cpuCost, bitrate, packetRate, enabled ? "" : ", disabled");
+	}
+
+}
@@ -0,0 +1,255 @@
+package org.github.sipuada.plugins.audio;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.github.sipuada.plugins.audio.AudioSimulationSipuadaPlugin.SupportedAudioCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runtime registry of the audio codecs a plugin negotiates, in order of preference.
+ * <p>
+ * Codecs can be registered, enabled and disabled at any time; readers always see an
+ * immutable snapshot, so negotiation never takes a lock. The order in which codecs
+ * are offered and accepted depends on the current node load: below the economy
+ * threshold codecs follow their preference order, above it they are sorted by CPU
+ * cost, and above the pressure threshold only the cheapest codec is offered.
+ */
+public class AudioCodecRegistry {
+
+	private final Logger logger = LoggerFactory.getLogger(AudioCodecRegistry.class);
+
+	public interface LoadGauge {
+
+		/**
+		 * @return the current load, from 0 (idle) to 1 (saturated).
+		 */
+		double read();
+
+	}
+
+	public enum LoadLevel {
+		NORMAL, ECONOMY, PRESSURE
+	}
+
+	public static final LoadGauge SYSTEM_LOAD = new LoadGauge() {
+
+		private final OperatingSystemMXBean operatingSystem
+			= ManagementFactory.getOperatingSystemMXBean();
+
+		@Override
+		public double read() {
+			double loadAverage = operatingSystem.getSystemLoadAverage();
+			if (loadAverage < 0) {
+				return 0;
+			}
+			return loadAverage / operatingSystem.getAvailableProcessors();
+		}
+
+	};
+
+	private static final long LOAD_SAMPLING_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	class Snapshot {
+		final List<AudioCodec> all;
+		final List<AudioCodec> enabled;
+		final List<AudioCodec> byCost;
+		final Map<String, AudioCodec> enabledByRtpmap = new HashMap<>();
+		Snapshot(List<AudioCodec> all) {
+			this.all = Collections.unmodifiableList(all);
+			List<AudioCodec> enabled = new ArrayList<>();
+			for (AudioCodec codec : all) {
+				if (codec.isEnabled()) {
+					enabled.add(codec);
+					enabledByRtpmap.put(codec.getRtpmap(), codec);
+				}
+			}
+			List<AudioCodec> byCost = new ArrayList<>(enabled);
+			Collections.sort(byCost, new Comparator<AudioCodec>() {
+
+				@Override
+				public int compare(AudioCodec one, AudioCodec other) {
+					return Integer.compare(one.getCpuCost(), other.getCpuCost());
+				}
+
+			});
+			this.enabled = Collections.unmodifiableList(enabled);
+			this.byCost = Collections.unmodifiableList(byCost);
+		}
+	}
+	private volatile Snapshot snapshot = new Snapshot(new ArrayList<AudioCodec>());
+
+	private volatile LoadGauge loadGauge = SYSTEM_LOAD;
+	private volatile double economyThreshold = 0.6;
+	private volatile double pressureThreshold = 0.85;
+	private volatile double sampledLoad;
+	private volatile long sampledAtNanos = System.nanoTime() - LOAD_SAMPLING_INTERVAL_NANOS;
+
+	/**
+	 * Creates a registry holding every {@link SupportedAudioCodec}, preferred in
+	 * the order they are declared.
+	 */
+	public static AudioCodecRegistry createDefault() {
+		List<SupportedAudioCodec> supportedAudioCodecs = new ArrayList<>();
+		Collections.addAll(supportedAudioCodecs, SupportedAudioCodec.values());
+		return create(supportedAudioCodecs);
+	}
+
+	/**
+	 * Creates a registry holding every {@link SupportedAudioCodec}, preferring
+	 * higher clock rates when the node is not under load.
+	 */
+	public static AudioCodecRegistry createByClockRate() {
+		List<SupportedAudioCodec> supportedAudioCodecs = new ArrayList<>();
+		Collections.addAll(supportedAudioCodecs, SupportedAudioCodec.values());
+		Collections.sort(supportedAudioCodecs, new Comparator<SupportedAudioCodec>() {
+
+			@Override
+			public int compare(SupportedAudioCodec one, SupportedAudioCodec other) {
+				return Integer.compare(other.getClockRate(), one.getClockRate());
+			}
+
+		});
+		return create(supportedAudioCodecs);
+	}
+
+	private static AudioCodecRegistry create(List<SupportedAudioCodec> supportedAudioCodecs) {
+		AudioCodecRegistry registry = new AudioCodecRegistry();
+		for (SupportedAudioCodec supportedAudioCodec : supportedAudioCodecs) {
+			registry.register(supportedAudioCodec.toAudioCodec());
+		}
+		return registry;
+	}
+
+	/**
+	 * Registers a codec at the end of the preference order, or replaces the
+	 * registered codec with the same rtpmap in place.
+	 */
+	public synchronized void register(AudioCodec codec) {
+		List<AudioCodec> codecs = new ArrayList<>(snapshot.all);
+		int index = codecs.indexOf(codec);
+		if (index >= 0) {
+			codecs.set(index, codec);
+		} else {
+			codecs.add(codec);
+		}
+		snapshot = new Snapshot(codecs);
+		logger.info("{} registered {}.", AudioCodecRegistry.class.getSimpleName(), codec);
+	}
+
+	public synchronized boolean unregister(String rtpmap) {
+		AudioCodec codec = find(rtpmap);
+		if (codec == null) {
+			return false;
+		}
+		List<AudioCodec> codecs = new ArrayList<>(snapshot.all);
+		codecs.remove(codec);
+		snapshot = new Snapshot(codecs);
+		logger.info("{} unregistered {}.", AudioCodecRegistry.class.getSimpleName(), codec);
+		return true;
+	}
+
+	public synchronized boolean setEnabled(String rtpmap, boolean enabled) {
+		AudioCodec codec = find(rtpmap);
+		if (codec == null) {
+			return false;
+		}
+		register(codec.withEnabled(enabled));
+		return true;
+	}
+
+	public AudioCodec find(String rtpmap) {
+		String normalizedRtpmap = rtpmap.trim().toUpperCase(Locale.US);
+		for (AudioCodec codec : snapshot.all) {
+			if (codec.getRtpmap().equals(normalizedRtpmap)) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	public AudioCodec findEnabled(String rtpmap) {
+		return snapshot.enabledByRtpmap.get(rtpmap.trim().toUpperCase(Locale.US));
+	}
+
+	public List<AudioCodec> getCodecs() {
+		return snapshot.all;
+	}
+
+	public List<AudioCodec> getEnabledCodecs() {
+		return snapshot.enabled;
+	}
+
+	/**
+	 * @return enabled codecs in the order they should be accepted at the current load.
+	 */
+	public List<AudioCodec> getNegotiationOrder() {
+		Snapshot current = snapshot;
+		return getLoad() < economyThreshold ? current.enabled : current.byCost;
+	}
+
+	/**
+	 * @return enabled codecs that should be offered at the current load.
+	 */
+	public List<AudioCodec> getOfferedCodecs() {
+		return getOfferedCodecs(getLoadLevel());
+	}
+
+	/**
+	 * @return enabled codecs that should be offered at the given load level, as
+	 *  long as the registered codecs do not change.
+	 */
+	public List<AudioCodec> getOfferedCodecs(LoadLevel level) {
+		Snapshot current = snapshot;
+		switch (level) {
+			case NORMAL:
+				return current.enabled;
+			case ECONOMY:
+				return current.byCost;
+			default:
+				return current.byCost.isEmpty() ? current.byCost : current.byCost.subList(0, 1);
+		}
+	}
+
+	public LoadLevel getLoadLevel() {
+		double load = getLoad();
+		if (load < economyThreshold) {
+			return LoadLevel.NORMAL;
+		}
+		return load < pressureThreshold ? LoadLevel.ECONOMY : LoadLevel.PRESSURE;
+	}
+
+	public double getLoad() {
+		long now = System.nanoTime();
+		if (now - sampledAtNanos >= LOAD_SAMPLING_INTERVAL_NANOS) {
+			sampledLoad = loadGauge.read();
+			sampledAtNanos = now;
+		}
+		return sampledLoad;
+	}
+
+	public void setLoadGauge(LoadGauge loadGauge) {
+		this.loadGauge = loadGauge;
+		sampledAtNanos = System.nanoTime() - LOAD_SAMPLING_INTERVAL_NANOS;
+	}
+
+	public void setThresholds(double economyThreshold, double pressureThreshold) {
+		this.economyThreshold = economyThreshold;
+		this.pressureThreshold = Math.max(economyThreshold, pressureThreshold);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%s load=%.2f", snapshot.all, getLoad());
+	}
+
+}
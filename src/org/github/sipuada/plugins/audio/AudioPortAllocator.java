@@ -0,0 +1,97 @@
+package org.github.sipuada.plugins.audio;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the local ports audio plugins offer and answer with.
+ * <p>
+ * Ports are taken from a cursor that rotates over the range, skipping ports
+ * still reserved by a live call, so plugins sharing one allocator, such as the
+ * shards of a sharded plugin, never give the same port to two calls at once.
+ */
+public class AudioPortAllocator {
+
+	public static final int MIN_PORT = 16384;
+	public static final int MAX_PORT = 32767;
+
+	private final int minPort;
+	private final int range;
+	private final AtomicInteger cursor;
+	private final Set<Integer> reserved = Collections
+		.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	public AudioPortAllocator() {
+		this(MIN_PORT, MAX_PORT);
+	}
+
+	public AudioPortAllocator(int minPort, int maxPort) {
+		if (minPort <= 0 || maxPort < minPort) {
+			throw new IllegalArgumentException(String.format("Invalid port range %d-%d.",
+				minPort, maxPort));
+		}
+		this.minPort = minPort;
+		this.range = maxPort - minPort;
+		this.cursor = new AtomicInteger(new Random().nextInt(range));
+	}
+
+	/**
+	 * Reserves ports until they are {@link #release(int[]) released}. Ports are
+	 * consecutive unless some of them are already taken.
+	 *
+	 * @throws IllegalStateException if fewer than {@code count} ports are free.
+	 */
+	public int[] reserve(int count) {
+		int[] ports = new int[count];
+		int reservedPorts = 0;
+		int skippedPorts = 0;
+		while (reservedPorts < count) {
+			int port = nextPort();
+			if (reserved.add(port)) {
+				ports[reservedPorts++] = port;
+			} else if (++skippedPorts >= range) {
+				for (int index = 0; index < reservedPorts; index++) {
+					reserved.remove(ports[index]);
+				}
+				throw new IllegalStateException(String.format("Only %d of %d audio ports "
+					+ "are free.", reservedPorts, count));
+			}
+		}
+		return ports;
+	}
+
+	/**
+	 * Picks ports that are free right now without reserving them, for plugins
+	 * that keep no per-call state to release them from.
+	 */
+	public int[] pick(int count) {
+		int[] ports = new int[count];
+		int pickedPorts = 0;
+		int skippedPorts = 0;
+		while (pickedPorts < count) {
+			int port = nextPort();
+			if (!reserved.contains(port) || ++skippedPorts >= range) {
+				ports[pickedPorts++] = port;
+			}
+		}
+		return ports;
+	}
+
+	public void release(int[] ports) {
+		for (int port : ports) {
+			reserved.remove(port);
+		}
+	}
+
+	public int getReservedPorts() {
+		return reserved.size();
+	}
+
+	private int nextPort() {
+		return minPort + Math.floorMod(cursor.getAndIncrement(), range);
+	}
+
+}
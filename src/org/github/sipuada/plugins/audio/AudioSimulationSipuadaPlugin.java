@@ -1,14 +1,38 @@
 package org.github.sipuada.plugins.audio;
 
+import java.io.Closeable;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.github.sipuada.Constants.RequestMethod;
 import org.github.sipuada.SipUserAgent;
-import org.github.sipuada.plugins.SipuadaPlugin;
+import org.github.sipuada.plugins.admission.AdmissionControlledSipuadaPlugin;
+import org.github.sipuada.plugins.admission.AdmissionController;
+import org.github.sipuada.plugins.admission.AdmissionDecision;
+import org.github.sipuada.plugins.audio.AudioCodecRegistry.LoadLevel;
+import org.github.sipuada.plugins.batch.BatchOfferSipuadaPlugin;
+import org.github.sipuada.plugins.drain.CallDrainer;
+import org.github.sipuada.plugins.drain.DrainableSipuadaPlugin;
+import org.github.sipuada.plugins.metrics.CallSetupPhaseEvent;
+import org.github.sipuada.plugins.metrics.PluginMetrics;
+import org.github.sipuada.plugins.metrics.PluginMetrics.Method;
+import org.github.sipuada.plugins.reinvite.ReinviteSipuadaPlugin;
+import org.github.sipuada.plugins.reinvite.SdpRevisions;
+import org.github.sipuada.plugins.state.CallState;
+import org.github.sipuada.plugins.state.CallStateListener;
+import org.github.sipuada.plugins.state.CallStateListeners;
+import org.github.sipuada.plugins.state.CallStateTransition;
+import org.github.sipuada.plugins.state.RecoverableSipuadaPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,7 +51,9 @@ import android.javax.sdp.SdpException;
 import android.javax.sdp.SdpFactory;
 import android.javax.sdp.SessionDescription;
 
-public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
+public class AudioSimulationSipuadaPlugin implements BatchOfferSipuadaPlugin,
+		DrainableSipuadaPlugin, ReinviteSipuadaPlugin, RecoverableSipuadaPlugin,
+		AdmissionControlledSipuadaPlugin, Closeable {
 
 	private final Logger logger = LoggerFactory.getLogger
 		(AudioSimulationSipuadaPlugin.class);
@@ -53,33 +79,55 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 		public void setAnswer(SessionDescription answer) {
 			storage.put("answer", answer);
 		}
+		public SessionDescription getLocal() {
+			return storage.get("local");
+		}
+		public void setLocal(SessionDescription local) {
+			storage.put("local", local);
+		}
+		boolean established = false;
+		public boolean isEstablished() {
+			return established;
+		}
+		public void setEstablished(boolean established) {
+			this.established = established;
+		}
 	}
-	private final Map<String, Record> records = new HashMap<>();
+	private final Map<String, Record> records = new ConcurrentHashMap<>();
 
     public enum CallRole {
         CALLEE,
         CALLER
     }
-    private final Map<String, CallRole> roles = new HashMap<>();
+    private final Map<String, CallRole> roles = new ConcurrentHashMap<>();
+    private final Map<String, MediaDirection> pendingDirections
+    	= new ConcurrentHashMap<>();
 
     public enum SupportedAudioCodec {
 
-    	PCMA_8("PCMA", 8, 8000, true),
-    	SPEEX_8("SPEEX", 97, 8000, true),
-    	SPEEX_16("SPEEX", 97, 16000, true),
-    	SPEEX_32("SPEEX", 97, 32000, true);
+    	PCMA_8("PCMA", 8, 8000, true, 1, 64000, 50),
+    	SPEEX_8("SPEEX", 97, 8000, true, 4, 15000, 50),
+    	SPEEX_16("SPEEX", 97, 16000, true, 6, 27800, 50),
+    	SPEEX_32("SPEEX", 97, 32000, true, 9, 44000, 50);
 
     	private final String encoding;
     	private final int type;
     	private final int clockRate;
     	private final boolean enabled;
+    	private final int cpuCost;
+    	private final int bitrate;
+    	private final int packetRate;
 
     	private SupportedAudioCodec(String encoding, int type,
-    			int clockRate, boolean enabled) {
+    			int clockRate, boolean enabled, int cpuCost,
+    			int bitrate, int packetRate) {
     		this.encoding = encoding;
     		this.type = type;
     		this.clockRate = clockRate;
     		this.enabled = enabled;
+    		this.cpuCost = cpuCost;
+    		this.bitrate = bitrate;
+    		this.packetRate = packetRate;
     	}
 
     	public String getEncoding() {
@@ -102,6 +150,11 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 			return String.format(Locale.US, "%s/%d", encoding, clockRate);
 		}
 
+		public AudioCodec toAudioCodec() {
+			return new AudioCodec(encoding, type, clockRate, enabled,
+				cpuCost, bitrate, packetRate);
+		}
+
     }
     public class Session {
 
@@ -162,94 +215,571 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 		}
 
     }
-    private final Map<SupportedAudioCodec, Session> streams = new HashMap<>();
+    private final Map<String, Map<AudioCodec, Session>> streams
+    	= new ConcurrentHashMap<>();
+    private final AtomicLong activeStreams = new AtomicLong();
+    private final AudioCodecRegistry codecRegistry;
+
+    private static final long STATELESS_SESSION_TAG = 0x5AL << 56;
+    private static final long STATELESS_SESSION_TAG_MASK = 0xFFL << 56;
+    private static final long NO_STATELESS_SESSION = -1;
+    private final Map<String, SessionDescription> unencodedOffers
+    	= new ConcurrentHashMap<>();
 
     private final String identifier;
+    private final AudioPortAllocator portAllocator;
+    private final Map<String, int[]> reservedPorts = new ConcurrentHashMap<>();
+    private final boolean consolidatedMedia;
+    private final boolean stateless;
+    private volatile boolean draining = false;
+    private volatile AdmissionController admissionController;
+    private final PluginMetrics metrics;
+    private final CallStateListeners callStateListeners = new CallStateListeners();
 
 	public AudioSimulationSipuadaPlugin(String identifier) {
+		this(identifier, false);
+	}
+
+	public AudioSimulationSipuadaPlugin(String identifier,
+			boolean consolidatedMedia) {
+		this(identifier, consolidatedMedia, false);
+	}
+
+	/**
+	 * In stateless mode no per-call records or roles are kept. Offers always use
+	 * a single consolidated media line, and the caller's local address and port,
+	 * along with the load level its codecs were picked at, are encoded into the
+	 * origin session id, which this plugin echoes back in its answers; the offer
+	 * is rebuilt from it once the answer arrives, provided the answer only accepts
+	 * codecs the rebuilt offer carries. Answerers that do not echo the session id
+	 * need stateful mode. Offers from local addresses that cannot be encoded, such
+	 * as IPv6 ones, are kept until their answer arrives. In-dialog offers and
+	 * answers are renegotiated from scratch in this mode.
+	 */
+	public AudioSimulationSipuadaPlugin(String identifier,
+			boolean consolidatedMedia, boolean stateless) {
+		this(identifier, consolidatedMedia, stateless, new AudioPortAllocator());
+	}
+
+	/**
+	 * Plugins given the same port allocator, such as the shards of a sharded
+	 * plugin, never hand out a local port another of them is still using.
+	 */
+	public AudioSimulationSipuadaPlugin(String identifier,
+			boolean consolidatedMedia, boolean stateless,
+			AudioPortAllocator portAllocator) {
+		this(identifier, consolidatedMedia, stateless, portAllocator,
+			AudioCodecRegistry.createDefault());
+	}
+
+	/**
+	 * Negotiates the codecs of the given registry, such as one created by
+	 * {@link AudioCodecRegistry#createByClockRate()}.
+	 */
+	public AudioSimulationSipuadaPlugin(String identifier,
+			boolean consolidatedMedia, boolean stateless,
+			AudioPortAllocator portAllocator, AudioCodecRegistry codecRegistry) {
 		this.identifier = identifier;
-		logger.info("{} sipuada plugin for {} instantiated.",
+		this.consolidatedMedia = consolidatedMedia || stateless;
+		this.stateless = stateless;
+		this.portAllocator = portAllocator;
+		this.codecRegistry = codecRegistry;
+		metrics = new PluginMetrics(AudioSimulationSipuadaPlugin.class
+			.getSimpleName(), String.format(Locale.US, "%s-%s", identifier,
+			Integer.toHexString(System.identityHashCode(this))));
+		metrics.registerGauge("records", new PluginMetrics.Gauge() {
+
+			@Override
+			public long read() {
+				return records.size();
+			}
+
+		});
+		metrics.registerGauge("roles", new PluginMetrics.Gauge() {
+
+			@Override
+			public long read() {
+				return roles.size();
+			}
+
+		});
+		metrics.registerGauge("streams", new PluginMetrics.Gauge() {
+
+			@Override
+			public long read() {
+				return activeStreams.get();
+			}
+
+		});
+		metrics.register();
+		logger.info("{} sipuada plugin for {} instantiated{}.",
+			AudioSimulationSipuadaPlugin.class.getSimpleName(), identifier,
+			stateless ? " in stateless mode" : "");
+	}
+
+	public PluginMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public void close() {
+		metrics.unregister();
+		logger.info("{} sipuada plugin for {} closed.",
 			AudioSimulationSipuadaPlugin.class.getSimpleName(), identifier);
 	}
 
+	public AudioCodecRegistry getCodecRegistry() {
+		return codecRegistry;
+	}
+
 	@Override
 	public SessionDescription generateOffer(String callId, RequestMethod method,
 			String localAddress) {
+		LoadLevel loadLevel = codecRegistry.getLoadLevel();
+		List<AudioCodec> audioCodecs = codecRegistry.getOfferedCodecs(loadLevel);
+		int[] localPorts = allocateLocalPorts(consolidatedMedia ? 1 : audioCodecs.size());
+		if (localPorts == null) {
+			metrics.failed(Method.GENERATE_OFFER);
+			return null;
+		}
+		return generateOffer(callId, method, localAddress, loadLevel, audioCodecs,
+			localPorts, 0);
+	}
+
+	@Override
+	public Map<String, SessionDescription> generateOffers(List<String> callIds,
+			RequestMethod method, String localAddress) {
+		Map<String, SessionDescription> offers = new LinkedHashMap<>();
+		LoadLevel loadLevel = codecRegistry.getLoadLevel();
+		List<AudioCodec> audioCodecs = codecRegistry.getOfferedCodecs(loadLevel);
+		int portsPerOffer = consolidatedMedia ? 1 : audioCodecs.size();
+		int[] localPorts = allocateLocalPorts(callIds.size() * portsPerOffer);
+		if (localPorts == null) {
+			for (String callId : callIds) {
+				metrics.failed(Method.GENERATE_OFFER);
+				offers.put(callId, null);
+			}
+			return offers;
+		}
+		for (int index = 0; index < callIds.size(); index++) {
+			String callId = callIds.get(index);
+			offers.put(callId, generateOffer(callId, method, localAddress,
+				loadLevel, audioCodecs, localPorts, index * portsPerOffer));
+		}
+		return offers;
+	}
+
+	private SessionDescription generateOffer(String callId, RequestMethod method,
+			String localAddress, LoadLevel loadLevel, List<AudioCodec> audioCodecs,
+			int[] localPorts, int firstLocalPort) {
+		long startNanos = System.nanoTime();
+		int[] callPorts = Arrays.copyOfRange(localPorts, firstLocalPort,
+			firstLocalPort + (consolidatedMedia ? 1 : audioCodecs.size()));
+		if (draining) {
+			logger.warn("{} refused to generate offer in context of call "
+				+ "invitation {} while draining.", AudioSimulationSipuadaPlugin
+				.class.getSimpleName(), callId);
+			releaseLocalPorts(callPorts);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
+		if (stateless) {
+			if (!admit(callId, 1, "offer")) {
+				return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+			}
+			SessionDescription offer = generateStatelessOffer(callId, method,
+				localAddress, loadLevel, audioCodecs, localPorts[firstLocalPort]);
+			if (offer == null) {
+				discardCallState(callId);
+			}
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, offer);
+		}
+		Record record = records.get(callId);
+		if (record != null && record.getAnswer() != null) {
+			releaseLocalPorts(callPorts);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos,
+				generateInDialogOffer(callId, method, record));
+		}
+		if (!admit(callId, consolidatedMedia ? 1 : audioCodecs.size(), "offer")) {
+			releaseLocalPorts(callPorts);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
+		assignLocalPorts(callId, callPorts);
 		roles.put(callId,  CallRole.CALLER);
 		try {
+			CallSetupPhaseEvent createSdpPhase = CallSetupPhaseEvent.start
+				(AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, "createSdp");
 			SessionDescription offer = createSdpOffer(localAddress);
-			records.put(callId, new Record(offer));
+			createSdpPhase.commit();
+			record = new Record(offer);
+			record.setLocal(offer);
+			records.put(callId, record);
 			logger.info("{} generating offer {{}} in context of call invitation {} "
 				+ "for a {} request...", AudioSimulationSipuadaPlugin.class
 				.getSimpleName(), offer, callId, method);
+			CallSetupPhaseEvent mediaTypesPhase = CallSetupPhaseEvent.start
+				(AudioSimulationSipuadaPlugin.class.getSimpleName(), callId,
+				"includeOfferedMediaTypes");
 			try {
-				return includeOfferedMediaTypes(offer, localAddress);
+				offer = includeOfferedMediaTypes(offer, localAddress, audioCodecs,
+					localPorts, firstLocalPort);
+				if (offer != null) {
+					notifyCallState(CallStateTransition.OFFER, callId,
+						CallState.Role.CALLER, offer, null);
+				} else {
+					discardCallState(callId);
+				}
+				return metrics.completed(Method.GENERATE_OFFER, startNanos, offer);
 			} catch (Throwable anyIssue) {
     			logger.error("{} could not include supported media types into "
 					+ "offer {{}} in context of call invitation {} for a {} request...",
 					AudioSimulationSipuadaPlugin.class.getSimpleName(), offer, callId,
 					method, anyIssue);
-    			return null;
+    			discardCallState(callId);
+    			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+			} finally {
+				mediaTypesPhase.commit();
 			}
 		} catch (Throwable anyIssue) {
 			logger.error("{} could not generate offer in context of call "
 				+ "invitation {} for a {} request...", AudioSimulationSipuadaPlugin
 				.class.getSimpleName(), callId, method, anyIssue);
+			discardCallState(callId);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
+	}
+
+	private SessionDescription generateStatelessOffer(String callId,
+			RequestMethod method, String localAddress, LoadLevel loadLevel,
+			List<AudioCodec> audioCodecs, int localPort) {
+		try {
+			long sessionId = encodeStatelessSessionId(localAddress, loadLevel, localPort);
+			SessionDescription offer;
+			if (sessionId != NO_STATELESS_SESSION) {
+				offer = createStatelessSdpOffer(localAddress, sessionId,
+					audioCodecs, localPort);
+			} else {
+				offer = createStatelessSdpOffer(localAddress,
+					System.currentTimeMillis() / 1000, audioCodecs, localPort);
+				unencodedOffers.put(callId, offer);
+				logger.debug("{} kept stateless offer in context of call invitation {} "
+					+ "as local address {} cannot be encoded into it.",
+					AudioSimulationSipuadaPlugin.class.getSimpleName(), callId,
+					localAddress);
+			}
+			notifyCallState(CallStateTransition.OFFER, callId,
+				CallState.Role.CALLER, offer, null);
+			logger.info("{} generating stateless offer {{}} in context of call "
+				+ "invitation {} for a {} request...", AudioSimulationSipuadaPlugin
+				.class.getSimpleName(), offer, callId, method);
+			return offer;
+		} catch (Throwable anyIssue) {
+			logger.error("{} could not generate stateless offer in context of call "
+				+ "invitation {} for a {} request...", AudioSimulationSipuadaPlugin
+				.class.getSimpleName(), callId, method, anyIssue);
+			return null;
+		}
+	}
+
+	private SessionDescription generateInDialogOffer(String callId,
+			RequestMethod method, Record record) {
+		try {
+			SessionDescription offer = reviseSdp(record.getLocal(),
+				pendingDirections.remove(callId));
+			roles.put(callId, CallRole.CALLER);
+			record.setOffer(offer);
+			record.setLocal(offer);
+			notifyCallState(CallStateTransition.OFFER, callId,
+				CallState.Role.CALLER, offer, null);
+			logger.info("{} generating in-dialog offer {{}} in context of call {} "
+				+ "for a {} request...", AudioSimulationSipuadaPlugin.class
+				.getSimpleName(), offer, callId, method);
+			return offer;
+		} catch (Throwable anyIssue) {
+			logger.error("{} could not generate in-dialog offer in context of call "
+				+ "{} for a {} request...", AudioSimulationSipuadaPlugin
+				.class.getSimpleName(), callId, method, anyIssue);
 			return null;
 		}
 	}
 
 	@Override
 	public void receiveAnswerToAcceptedOffer(String callId, SessionDescription answer) {
+		long startNanos = System.nanoTime();
+		if (stateless) {
+			receiveStatelessAnswer(callId, answer);
+			metrics.completed(Method.RECEIVE_ANSWER, startNanos);
+			return;
+		}
 		Record record = records.get(callId);
+		if (record == null) {
+			logger.error("{} received answer {{}} in context of unknown call "
+				+ "invitation {}.", AudioSimulationSipuadaPlugin.class.getSimpleName(),
+				answer, callId);
+			metrics.failed(Method.RECEIVE_ANSWER);
+			return;
+		}
+		setupStarted(callId);
 		SessionDescription offer = record.getOffer();
+		SessionDescription previousAnswer = record.getAnswer();
 		record.setAnswer(answer);
+		notifyCallState(CallStateTransition.ANSWER, callId,
+			CallState.Role.CALLER, null, answer);
 		logger.info("{} received answer {{}} to offer {{}} in context of call "
 			+ "invitation {}...", AudioSimulationSipuadaPlugin.class.getSimpleName(),
 			answer, offer, callId);
+		if (previousAnswer != null && !haveCodecsChanged(previousAnswer, answer)) {
+			logger.info("{} kept media session in context of call {} as its "
+				+ "codecs did not change.", AudioSimulationSipuadaPlugin.class
+				.getSimpleName(), callId);
+			metrics.completed(Method.RECEIVE_ANSWER, startNanos);
+			return;
+		}
+		record.setEstablished(false);
+		if (previousAnswer != null) {
+			terminateStreams(callId);
+		}
+		CallSetupPhaseEvent prepareSetupPhase = CallSetupPhaseEvent.start
+			(AudioSimulationSipuadaPlugin.class.getSimpleName(), callId,
+			"prepareForSessionSetup");
+		try {
+			prepareForSessionSetup(callId, roles.get(callId), offer, answer);
+		} catch (Throwable anyIssue) {
+			logger.error("{} could not prepare for session setup in "
+				+ "context of call invitation {}!",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, anyIssue);
+			metrics.failed(Method.RECEIVE_ANSWER);
+		} finally {
+			prepareSetupPhase.commit();
+		}
+		metrics.completed(Method.RECEIVE_ANSWER, startNanos);
+	}
+
+	private void receiveStatelessAnswer(String callId, SessionDescription answer) {
+		setupStarted(callId);
+		CallSetupPhaseEvent prepareSetupPhase = CallSetupPhaseEvent.start
+			(AudioSimulationSipuadaPlugin.class.getSimpleName(), callId,
+			"prepareForSessionSetup");
 		try {
-			prepareForSessionSetup(callId, offer, answer);
+			SessionDescription offer = unencodedOffers.remove(callId);
+			if (offer == null) {
+				offer = recoverStatelessOffer(answer);
+			}
+			if (offer == null) {
+				logger.error("{} could not recover stateless offer in context of call "
+					+ "invitation {} as answer {{}} did not echo its session id!",
+					AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, answer);
+				metrics.failed(Method.RECEIVE_ANSWER);
+				return;
+			}
+			notifyCallState(CallStateTransition.ANSWER, callId,
+				CallState.Role.CALLER, offer, answer);
+			logger.info("{} received answer {{}} to stateless offer {{}} in context "
+				+ "of call invitation {}...", AudioSimulationSipuadaPlugin.class
+				.getSimpleName(), answer, offer, callId);
+			prepareForSessionSetup(callId, CallRole.CALLER, offer, answer);
 		} catch (Throwable anyIssue) {
 			logger.error("{} could not prepare for session setup in "
 				+ "context of call invitation {}!",
 				AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, anyIssue);
+			metrics.failed(Method.RECEIVE_ANSWER);
+		} finally {
+			prepareSetupPhase.commit();
 		}
 	}
 
 	@Override
 	public SessionDescription generateAnswer(String callId, RequestMethod method,
 			SessionDescription offer, String localAddress) {
-        roles.put(callId, CallRole.CALLEE);
+		long startNanos = System.nanoTime();
+		if (draining) {
+			logger.warn("{} refused to generate answer in context of call "
+				+ "invitation {} while draining.", AudioSimulationSipuadaPlugin
+				.class.getSimpleName(), callId);
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+		}
+		Record record = records.get(callId);
+		if (record != null && record.getAnswer() != null
+				&& !haveCodecsChanged(record.getAnswer(), offer)) {
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos,
+				generateInDialogAnswer(callId, method, offer, record));
+		}
+		boolean newCall = record == null;
+        if (!admit(callId, consolidatedMedia ? 1 : codecRegistry.getEnabledCodecs().size(),
+        		"answer")) {
+        	return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+        }
+        setupStarted(callId);
+        if (!newCall) {
+        	terminateStreams(callId);
+        }
+        if (!stateless) {
+        	roles.put(callId, CallRole.CALLEE);
+        }
         try {
+    		CallSetupPhaseEvent createSdpPhase = CallSetupPhaseEvent.start
+    			(AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, "createSdp");
     		SessionDescription answer = createSdpAnswer(offer, localAddress);
-    		records.put(callId, new Record(offer, answer));
+    		createSdpPhase.commit();
+    		if (!stateless) {
+    			record = new Record(offer, answer);
+    			record.setLocal(answer);
+    			records.put(callId, record);
+    		}
     		logger.info("{} generating answer {{}} to offer {{}} in context "
     			+ "of call invitation {} for a {} request...",
     			AudioSimulationSipuadaPlugin.class.getSimpleName(),
     			answer, offer, callId, method);
+    		CallSetupPhaseEvent mediaTypesPhase = CallSetupPhaseEvent.start
+    			(AudioSimulationSipuadaPlugin.class.getSimpleName(), callId,
+    			"includeAcceptedMediaTypes");
     		try {
-        		return includeAcceptedMediaTypes(callId, answer, offer, localAddress);
+    			answer = includeAcceptedMediaTypes(callId, answer, offer, localAddress);
+    			if (answer != null) {
+    				notifyCallState(CallStateTransition.ANSWER, callId,
+    					CallState.Role.CALLEE, offer, answer);
+    			} else if (newCall) {
+    				discardCallState(callId);
+    			}
+        		return metrics.completed(Method.GENERATE_ANSWER, startNanos, answer);
     		} catch (Throwable anyIssue) {
     			logger.error("{} could not include accepted media types "
 					+ "into answer {{}} to offer {{}} in context of call invitation"
 					+ " {} for a {} request...", AudioSimulationSipuadaPlugin
 					.class.getSimpleName(), answer, offer, callId, method, anyIssue);
-    			return null;
+    			if (newCall) {
+    				discardCallState(callId);
+    			}
+    			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+    		} finally {
+    			mediaTypesPhase.commit();
     		}
         } catch (Throwable anyIssue) {
 			logger.error("{} could not generate answer to offer {{}} in context of "
 				+ "call invitation {} for a {} request...",
 				AudioSimulationSipuadaPlugin.class.getSimpleName(),
 				offer, callId, method, anyIssue);
-			return null;
+			if (newCall) {
+				discardCallState(callId);
+			}
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
         }
 	}
 
+	private SessionDescription generateInDialogAnswer(String callId,
+			RequestMethod method, SessionDescription offer, Record record) {
+		try {
+			SessionDescription answer = reviseSdp(record.getLocal(),
+				SdpRevisions.getMediaDirection(offer).getAnswerDirection());
+			roles.put(callId, CallRole.CALLEE);
+			record.setOffer(offer);
+			record.setAnswer(answer);
+			record.setLocal(answer);
+			notifyCallState(CallStateTransition.ANSWER, callId,
+				CallState.Role.CALLEE, offer, answer);
+			logger.info("{} generating in-dialog answer {{}} to offer {{}} in "
+				+ "context of call {} for a {} request...",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(),
+				answer, offer, callId, method);
+			return answer;
+		} catch (Throwable anyIssue) {
+			logger.error("{} could not generate in-dialog answer to offer {{}} in "
+				+ "context of call {} for a {} request...",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(),
+				offer, callId, method, anyIssue);
+			return null;
+		}
+	}
+
+	private SessionDescription reviseSdp(SessionDescription previous,
+			MediaDirection direction) throws SdpException {
+		SessionDescription revision = SdpRevisions.nextRevision(previous);
+		if (direction != null) {
+			SdpRevisions.setMediaDirection(revision, direction);
+		}
+		return revision;
+	}
+
+	private boolean haveCodecsChanged(SessionDescription previous,
+			SessionDescription current) {
+		try {
+			return !SdpRevisions.getRtpmaps(current)
+				.containsAll(SdpRevisions.getRtpmaps(previous));
+		} catch (Throwable anyIssue) {
+			return true;
+		}
+	}
+
+	@Override
+	public void updateMediaDirection(String callId, MediaDirection direction) {
+		pendingDirections.put(callId, direction);
+	}
+
 	private SessionDescription createSdpOffer(String localAddress)
 			throws SdpException {
 		return createSdp(localAddress, System.currentTimeMillis() / 1000, 0L, "-");
 	}
 
+	private SessionDescription createStatelessSdpOffer(String localAddress,
+			long sessionId, List<AudioCodec> audioCodecs, int localPort)
+					throws SdpException {
+		SessionDescription offer = createSdp(localAddress, sessionId, 0L, "-");
+		return includeConsolidatedOfferedMediaTypes(offer, localAddress,
+			audioCodecs, localPort);
+	}
+
+	/**
+	 * Rebuilds the stateless offer an answer responds to from the session id it
+	 * echoes, or returns null if the answer did not echo one of this plugin's
+	 * session ids or accepts codecs the rebuilt offer does not carry.
+	 */
+	private SessionDescription recoverStatelessOffer(SessionDescription answer)
+			throws SdpException {
+		long sessionId = answer.getOrigin().getSessionId();
+		LoadLevel[] loadLevels = LoadLevel.values();
+		int loadLevel = (int) ((sessionId >>> 48) & 0xFF);
+		if ((sessionId & STATELESS_SESSION_TAG_MASK) != STATELESS_SESSION_TAG
+				|| loadLevel >= loadLevels.length) {
+			return null;
+		}
+		SessionDescription offer = createStatelessSdpOffer(
+			decodeStatelessAddress(sessionId), sessionId,
+			codecRegistry.getOfferedCodecs(loadLevels[loadLevel]),
+			(int) (sessionId & 0xFFFF));
+		if (!SdpRevisions.getRtpmaps(offer).containsAll(SdpRevisions.getRtpmaps(answer))) {
+			return null;
+		}
+		return offer;
+	}
+
+	private long encodeStatelessSessionId(String localAddress, LoadLevel loadLevel,
+			int localPort) {
+		String[] octets = localAddress.split("\\.");
+		if (octets.length != 4) {
+			return NO_STATELESS_SESSION;
+		}
+		long address = 0;
+		for (String octet : octets) {
+			int value;
+			try {
+				value = Integer.parseInt(octet.trim());
+			} catch (NumberFormatException notNumeric) {
+				return NO_STATELESS_SESSION;
+			}
+			if (value < 0 || value > 255) {
+				return NO_STATELESS_SESSION;
+			}
+			address = (address << 8) | value;
+		}
+		return STATELESS_SESSION_TAG | ((long) loadLevel.ordinal() << 48)
+			| (address << 16) | (localPort & 0xFFFF);
+	}
+
+	private String decodeStatelessAddress(long sessionId) {
+		long address = (sessionId >>> 16) & 0xFFFFFFFFL;
+		return String.format(Locale.US, "%d.%d.%d.%d", (address >>> 24) & 0xFF,
+			(address >>> 16) & 0xFF, (address >>> 8) & 0xFF, address & 0xFF);
+	}
+
 	private SessionDescription createSdpAnswer(SessionDescription offer,
 			String localAddress) throws SdpException {
 		return createSdp(localAddress, offer.getOrigin().getSessionId(),
@@ -296,14 +826,47 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 		return sessionNameField;
 	}
 
+	private int[] allocateLocalPorts(int count) {
+		if (stateless) {
+			return portAllocator.pick(count);
+		}
+		try {
+			return portAllocator.reserve(count);
+		} catch (IllegalStateException exhausted) {
+			logger.error("{} could not allocate {} local ports: {}",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(), count,
+				exhausted.getMessage());
+			return null;
+		}
+	}
+
+	private void assignLocalPorts(String callId, int[] ports) {
+		if (stateless) {
+			return;
+		}
+		int[] previousPorts = reservedPorts.put(callId, ports);
+		if (previousPorts != null) {
+			portAllocator.release(previousPorts);
+		}
+	}
+
+	private void releaseLocalPorts(int[] ports) {
+		if (!stateless) {
+			portAllocator.release(ports);
+		}
+	}
+
 	private SessionDescription includeOfferedMediaTypes(SessionDescription offer,
-			String localAddress) throws SdpException {
+			String localAddress, List<AudioCodec> audioCodecs,
+			int[] localPorts, int firstLocalPort) throws SdpException {
+		if (consolidatedMedia) {
+			return includeConsolidatedOfferedMediaTypes(offer, localAddress,
+				audioCodecs, localPorts[firstLocalPort]);
+		}
 		Vector<String> allMediaFormats = new Vector<>();
 		Vector<MediaDescription> mediaDescriptions = new Vector<>();
-		for (SupportedAudioCodec audioCodec : SupportedAudioCodec.values()) {
-			if (!audioCodec.isEnabled()) {
-				continue;
-			}
+		int localPortIndex = firstLocalPort;
+		for (AudioCodec audioCodec : audioCodecs) {
 			final String codecType = Integer.toString(audioCodec.getType());
 			allMediaFormats.add(codecType);
 			MediaDescriptionImpl mediaDescription = new MediaDescriptionImpl();
@@ -319,7 +882,7 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 			mediaField.setMedia("audio");
 			mediaField.setMediaType("audio");
 			mediaField.setProtocol(SdpConstants.RTP_AVP);
-			int localPort = new Random().nextInt((32767 - 16384)) + 16384;
+			int localPort = localPorts[localPortIndex++];
 			mediaField.setPort(localPort);
 			mediaDescription.setMediaField(mediaField);
 			AttributeField rtcpAttribute = createRtcpField(localAddress, localPort);
@@ -337,6 +900,46 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 		return offer;
 	}
 
+	private SessionDescription includeConsolidatedOfferedMediaTypes(
+			SessionDescription offer, String localAddress,
+			List<AudioCodec> audioCodecs, int localPort)
+					throws SdpException {
+		Vector<String> allMediaFormats = new Vector<>();
+		MediaDescriptionImpl mediaDescription = new MediaDescriptionImpl();
+		for (AudioCodec audioCodec : audioCodecs) {
+			int codecType = audioCodec.getType();
+			while (allMediaFormats.contains(Integer.toString(codecType))) {
+				codecType++;
+			}
+			allMediaFormats.add(Integer.toString(codecType));
+			AttributeField rtpmapAttributeField = new AttributeField();
+			rtpmapAttributeField.setName(SdpConstants.RTPMAP);
+			rtpmapAttributeField.setValue(String.format(Locale.US, "%d %s",
+				codecType, audioCodec.getRtpmap()));
+			mediaDescription.addAttribute(rtpmapAttributeField);
+		}
+		MediaField mediaField = new MediaField();
+		mediaField.setMediaFormats(new Vector<>(allMediaFormats));
+		mediaField.setMedia("audio");
+		mediaField.setMediaType("audio");
+		mediaField.setProtocol(SdpConstants.RTP_AVP);
+		mediaField.setPort(localPort);
+		mediaDescription.setMediaField(mediaField);
+		AttributeField rtcpAttribute = createRtcpField(localAddress, localPort);
+		mediaDescription.addAttribute(rtcpAttribute);
+		AttributeField sendReceiveAttribute = new AttributeField();
+		sendReceiveAttribute.setValue("sendrecv");
+		mediaDescription.addAttribute(sendReceiveAttribute);
+		ConnectionField connectionField = createConnectionField(localAddress);
+		mediaDescription.setConnection(connectionField);
+		Vector<MediaDescription> mediaDescriptions = new Vector<>();
+		mediaDescriptions.add(mediaDescription);
+		offer.setMediaDescriptions(mediaDescriptions);
+		logger.info("<< {{}} codecs were declared in a single media description "
+			+ "of offer {{}} >>", allMediaFormats, offer);
+		return offer;
+	}
+
 	private AttributeField createRtcpField(String localAddress, int localPort)
 			throws SdpException {
 		AttributeField rtcpAttribute = new AttributeField();
@@ -357,11 +960,17 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 		}
 		Vector<String> allMediaFormats = new Vector<>();
 		Vector<MediaDescription> answerMediaDescriptions = new Vector<>();
-		for (SupportedAudioCodec audioCodec : SupportedAudioCodec.values()) {
-			if (!audioCodec.isEnabled()) {
-				continue;
-			}
+		Set<MediaDescription> answeredMediaDescriptions = new HashSet<>();
+		int[] localPorts = allocateLocalPorts(offerMediaDescriptions.size());
+		if (localPorts == null) {
+			return null;
+		}
+		assignLocalPorts(callId, localPorts);
+		for (AudioCodec audioCodec : codecRegistry.getNegotiationOrder()) {
 			for (MediaDescription mediaDescription : offerMediaDescriptions) {
+				if (answeredMediaDescriptions.contains(mediaDescription)) {
+					continue;
+				}
 				Vector<AttributeField> attributeFields
 					= ((MediaDescription) mediaDescription).getAttributes(false);
 				for (AttributeField attributeField : attributeFields) {
@@ -388,8 +997,7 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 							mediaField.setMedia("audio");
 							mediaField.setMediaType("audio");
 							mediaField.setProtocol(SdpConstants.RTP_AVP);
-							int localPort = new Random().nextInt
-								((32767 - 16384)) + 16384;
+							int localPort = localPorts[answerMediaDescriptions.size()];
 							mediaField.setPort(localPort);
 							((MediaDescriptionImpl) cloneMediaDescription)
 								.setMediaField(mediaField);
@@ -404,6 +1012,8 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 								= createConnectionField(localAddress);
 							cloneMediaDescription.setConnection(connectionField);
 							answerMediaDescriptions.add(cloneMediaDescription);
+							answeredMediaDescriptions.add(mediaDescription);
+							break;
 						}
 					}
 				}
@@ -415,12 +1025,17 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 		answer.setMediaDescriptions(answerMediaDescriptions);
 		logger.info("<< {{}} codecs were declared in answer {{}} to {{}} >>",
 			allMediaFormats, answer, offer);
+		CallSetupPhaseEvent prepareSetupPhase = CallSetupPhaseEvent.start
+			(AudioSimulationSipuadaPlugin.class.getSimpleName(), callId,
+			"prepareForSessionSetup");
 		try {
-			prepareForSessionSetup(callId, offer, answer);
+			prepareForSessionSetup(callId, CallRole.CALLEE, offer, answer);
 		} catch (Throwable anyIssue) {
 			logger.error("%% {} could not prepare for session setup in "
 				+ "context of call invitation {}! %%",
 				AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, anyIssue);
+		} finally {
+			prepareSetupPhase.commit();
 		}
 		return answer;
 	}
@@ -494,11 +1109,11 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 
 	}
 
-	private void prepareForSessionSetup(final String callId,
+	private void prepareForSessionSetup(final String callId, final CallRole role,
 			final SessionDescription offer, final SessionDescription answer)
 					throws SdpException {
 		extractConnectionInformation(answer, new ExtractionCallbackImpl
-				(roles.get(callId).toString(), "ANSWER") {
+				(role.toString(), "ANSWER") {
 
 			@Override
 			public void onConnectionInfoExtracted(final String answerDataAddress,
@@ -515,18 +1130,8 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 							final int offerCodecType) {
 						if (offerRtpmap.toLowerCase().trim().equals
 								(answerRtpmap.toLowerCase().trim())) {
-							SupportedAudioCodec supportedAudioCodec = null;
-							for (SupportedAudioCodec audioCodec
-									: SupportedAudioCodec.values()) {
-								if (!audioCodec.isEnabled()) {
-									continue;
-								}
-								if (audioCodec.getRtpmap().toLowerCase().equals
-									(answerRtpmap.toLowerCase().trim())) {
-									supportedAudioCodec = audioCodec;
-									break;
-								}
-							}
+							AudioCodec supportedAudioCodec
+								= codecRegistry.findEnabled(answerRtpmap);
 							if (supportedAudioCodec == null) {
 								logger.error("%% {} FOUND A CODEC MATCH but said codec"
 									+ " {} is not supported by this plugin!(?!) %%",
@@ -538,16 +1143,16 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 									AudioSimulationSipuadaPlugin.class.getSimpleName(),
 									answerRtpmap + " - " + answerCodecType);
 							}
-							switch (roles.get(callId)) {
+							switch (role) {
 								case CALLER:
-									streams.put(supportedAudioCodec,
+									putStream(callId, supportedAudioCodec,
 										new Session(offerDataAddress, offerDataPort,
 											offerControlAddress, offerControlPort,
 											answerDataAddress, answerDataPort,
 											answerControlAddress, answerControlPort));
 									break;
 								case CALLEE:
-									streams.put(supportedAudioCodec,
+									putStream(callId, supportedAudioCodec,
 										new Session(answerDataAddress, answerDataPort,
 											answerControlAddress, answerControlPort,
 											offerDataAddress, offerDataPort,
@@ -722,14 +1327,38 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 
 	@Override
 	public boolean performSessionSetup(String callId, SipUserAgent userAgent) {
-		Record record = records.get(callId);
-		SessionDescription offer = record.getOffer(), answer = record.getAnswer();
+		long startNanos = System.nanoTime();
+		Record record = stateless ? null : records.get(callId);
+		if (!stateless && record == null) {
+			logger.error("{} cannot perform session setup in context of unknown "
+				+ "call {}.", AudioSimulationSipuadaPlugin.class.getSimpleName(), callId);
+			return metrics.completed(Method.SESSION_SETUP, startNanos, false);
+		}
+		SessionDescription offer = record == null ? null : record.getOffer();
+		SessionDescription answer = record == null ? null : record.getAnswer();
+		if (record != null && record.isEstablished()) {
+			logger.info("^^ {} updating established session in context of call "
+				+ "{} without restarting media...\nOffer: {{}}\nAnswer: {{}} ^^",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(),
+				callId, offer, answer);
+			return metrics.completed(Method.SESSION_SETUP, startNanos, true);
+		}
+		if (record != null) {
+			record.setEstablished(true);
+		}
+		notifyCallState(CallStateTransition.SETUP, callId, null, null, null);
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.setupCompleted(callId);
+		}
 		logger.info("^^ {} performing session setup in context of call {}...\n"
 			+ "Role: {{}}\nOffer: {{}}\nAnswer: {{}} ^^",
 			AudioSimulationSipuadaPlugin.class.getSimpleName(),
 			callId, roles.get(callId), offer, answer);
-		for (SupportedAudioCodec supportedAudioCodec : streams.keySet()) {
-			Session session = streams.get(supportedAudioCodec);
+		Map<AudioCodec, Session> callStreams = streams.get(callId);
+		for (AudioCodec supportedAudioCodec : callStreams == null
+				? new HashSet<AudioCodec>() : callStreams.keySet()) {
+			Session session = callStreams.get(supportedAudioCodec);
 			logger.info("^^ Should setup a {} *data* stream from "
 				+ "{}:{} (origin) to {}:{} (destination)! ^^", supportedAudioCodec,
 				session.getLocalDataAddress(), session.getLocalDataPort(),
@@ -739,26 +1368,209 @@ public class AudioSimulationSipuadaPlugin implements SipuadaPlugin {
 				session.getLocalControlAddress(), session.getLocalControlPort(),
 				session.getRemoteControlAddress(), session.getRemoteControlPort());
 		}
-		return true;
+		return metrics.completed(Method.SESSION_SETUP, startNanos, true);
 	}
 
 	@Override
 	public boolean performSessionTermination(String callId) {
-		records.remove(callId);
-		logger.info("^^ {} performing session tear down in context of call {}... ^^",
+		long startNanos = System.nanoTime();
+		discardCallState(callId);
+		notifyCallState(CallStateTransition.TERMINATION, callId, null, null, null);
+		logger.info("^^ {} performed session tear down in context of call {}. ^^",
 			AudioSimulationSipuadaPlugin.class.getSimpleName(), callId);
-		for (SupportedAudioCodec supportedAudioCodec : streams.keySet()) {
-			Session session = streams.get(supportedAudioCodec);
-			logger.info("^^ Should terminate {} *data* stream from "
-				+ "{}:{} (origin) to {}:{} (destination)! ^^", supportedAudioCodec,
-				session.getLocalDataAddress(), session.getLocalDataPort(),
-				session.getRemoteDataAddress(), session.getRemoteDataPort());
-			logger.info("^^ Should terminate {} *control* stream from "
-				+ "{}:{} (origin) to {}:{} (destination)! ^^", supportedAudioCodec,
-				session.getLocalControlAddress(), session.getLocalControlPort(),
-				session.getRemoteControlAddress(), session.getRemoteControlPort());
+		return metrics.completed(Method.SESSION_TERMINATION, startNanos, true);
+	}
+
+	private void putStream(String callId, AudioCodec supportedAudioCodec,
+			Session session) {
+		Map<AudioCodec, Session> callStreams = streams.get(callId);
+		if (callStreams == null) {
+			Map<AudioCodec, Session> newCallStreams = new ConcurrentHashMap<>();
+			callStreams = streams.putIfAbsent(callId, newCallStreams);
+			if (callStreams == null) {
+				callStreams = newCallStreams;
+			}
+		}
+		if (callStreams.put(supportedAudioCodec, session) == null) {
+			activeStreams.incrementAndGet();
+		}
+	}
+
+	private void terminateStreams(String callId) {
+		Map<AudioCodec, Session> callStreams = streams.remove(callId);
+		if (callStreams == null) {
+			return;
+		}
+		activeStreams.addAndGet(-callStreams.size());
+		for (Map.Entry<AudioCodec, Session> stream : callStreams.entrySet()) {
+			terminateStream(stream.getKey(), stream.getValue());
+		}
+	}
+
+	private void terminateStream(AudioCodec supportedAudioCodec,
+			Session session) {
+		logger.info("^^ Should terminate {} *data* stream from "
+			+ "{}:{} (origin) to {}:{} (destination)! ^^", supportedAudioCodec,
+			session.getLocalDataAddress(), session.getLocalDataPort(),
+			session.getRemoteDataAddress(), session.getRemoteDataPort());
+		logger.info("^^ Should terminate {} *control* stream from "
+			+ "{}:{} (origin) to {}:{} (destination)! ^^", supportedAudioCodec,
+			session.getLocalControlAddress(), session.getLocalControlPort(),
+			session.getRemoteControlAddress(), session.getRemoteControlPort());
+	}
+
+	@Override
+	public CallDrainer.Report drain(long timeout, TimeUnit unit,
+			CallDrainer.ProgressListener listener) {
+		draining = true;
+		Set<String> callIds = new HashSet<>(records.keySet());
+		callIds.addAll(roles.keySet());
+		callIds.addAll(streams.keySet());
+		logger.info("^^ {} draining {} active calls... ^^",
+			AudioSimulationSipuadaPlugin.class.getSimpleName(), callIds.size());
+		CallDrainer.Report report = new CallDrainer().drain(callIds,
+				new CallDrainer.Terminator() {
+
+			@Override
+			public boolean terminate(String callId) {
+				discardCallState(callId);
+				notifyCallState(CallStateTransition.TERMINATION, callId,
+					null, null, null);
+				return true;
+			}
+
+		}, timeout, unit, listener);
+		return report;
+	}
+
+	@Override
+	public void addCallStateListener(CallStateListener listener) {
+		callStateListeners.add(listener);
+	}
+
+	@Override
+	public void removeCallStateListener(CallStateListener listener) {
+		callStateListeners.remove(listener);
+	}
+
+	@Override
+	public boolean restoreCallState(CallState state) {
+		String callId = state.getCallId();
+		try {
+			SdpFactory sdpFactory = SdpFactory.getInstance();
+			SessionDescription offer = sdpFactory
+				.createSessionDescriptionFromString(state.getOffer());
+			SessionDescription answer = state.getAnswer() == null ? null
+				: sdpFactory.createSessionDescriptionFromString(state.getAnswer());
+			CallRole role = state.getRole() == CallState.Role.CALLEE
+				? CallRole.CALLEE : CallRole.CALLER;
+			if (stateless) {
+				if (answer != null) {
+					prepareForSessionSetup(callId, role, offer, answer);
+				}
+				return true;
+			}
+			Record record = new Record(offer, answer);
+			record.setLocal(role == CallRole.CALLER ? offer : answer);
+			roles.put(callId, role);
+			records.put(callId, record);
+			if (answer != null) {
+				prepareForSessionSetup(callId, role, offer, answer);
+				record.setEstablished(state.isEstablished());
+			}
+			logger.info("^^ {} restored call {} as {}. ^^",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, role);
+			return true;
+		} catch (Throwable anyIssue) {
+			logger.error("^^ {} could not restore call {}! ^^",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(), callId, anyIssue);
+			records.remove(callId);
+			roles.remove(callId);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean discardCallState(String callId) {
+		roles.remove(callId);
+		pendingDirections.remove(callId);
+		unencodedOffers.remove(callId);
+		terminateStreams(callId);
+		int[] ports = reservedPorts.remove(callId);
+		if (ports != null) {
+			portAllocator.release(ports);
+		}
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.release(callId);
+		}
+		return records.remove(callId) != null;
+	}
+
+	@Override
+	public void setAdmissionController(AdmissionController admissionController) {
+		if (admissionController != null) {
+			admissionController.setGauge(AdmissionController.Resource.STREAMS,
+					new PluginMetrics.Gauge() {
+
+				@Override
+				public long read() {
+					return activeStreams.get();
+				}
+
+			});
+		}
+		this.admissionController = admissionController;
+	}
+
+	@Override
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	private boolean admit(String callId, int ports, String request) {
+		AdmissionController controller = admissionController;
+		if (controller == null) {
+			return true;
+		}
+		AdmissionDecision decision = controller.admit(callId, ports);
+		if (!decision.isAdmitted()) {
+			logger.warn("{} rejected {} in context of call invitation {}: {}.",
+				AudioSimulationSipuadaPlugin.class.getSimpleName(), request,
+				callId, decision);
+			return false;
 		}
 		return true;
 	}
 
+	private void setupStarted(String callId) {
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.setupStarted(callId);
+		}
+	}
+
+	private void notifyCallState(CallStateTransition transition, String callId,
+			CallState.Role role, SessionDescription offer, SessionDescription answer) {
+		if (callStateListeners.isEmpty()) {
+			return;
+		}
+		callStateListeners.fire(transition, new CallState(callId, role,
+			offer == null ? null : offer.toString(),
+			answer == null ? null : answer.toString(),
+			transition == CallStateTransition.SETUP));
+	}
+
+	@Override
+	public boolean isDraining() {
+		return draining;
+	}
+
+	@Override
+	public void resume() {
+		draining = false;
+		logger.info("^^ {} accepting calls again. ^^",
+			AudioSimulationSipuadaPlugin.class.getSimpleName());
+	}
+
 }
@@ -0,0 +1,16 @@
+package org.github.sipuada.plugins.batch;
+
+import java.util.List;
+import java.util.Map;
+
+import org.github.sipuada.Constants.RequestMethod;
+import org.github.sipuada.plugins.SipuadaPlugin;
+
+import android.javax.sdp.SessionDescription;
+
+public interface BatchOfferSipuadaPlugin extends SipuadaPlugin {
+
+	Map<String, SessionDescription> generateOffers(List<String> callIds,
+		RequestMethod method, String localAddress);
+
+}
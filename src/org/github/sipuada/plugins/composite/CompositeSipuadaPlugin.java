@@ -0,0 +1,427 @@
+package org.github.sipuada.plugins.composite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.github.sipuada.Constants.RequestMethod;
+import org.github.sipuada.SipUserAgent;
+import org.github.sipuada.plugins.SipuadaPlugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.gov.nist.gnjvx.sdp.fields.AttributeField;
+import android.javax.sdp.MediaDescription;
+import android.javax.sdp.SdpException;
+import android.javax.sdp.SessionDescription;
+
+public class CompositeSipuadaPlugin implements SipuadaPlugin, Closeable {
+
+	private final Logger logger = LoggerFactory.getLogger(CompositeSipuadaPlugin.class);
+
+	interface ChildCall<T> {
+
+		T call(int index, SipuadaPlugin child) throws Exception;
+
+	}
+
+	/**
+	 * Session-level attribute listing how many media lines each child contributed,
+	 * in child order, so that a peer composite can route them back.
+	 */
+	public static final String LAYOUT_ATTRIBUTE = "x-sipuada-composite-layout";
+
+	private final Map<String, int[]> layouts = new ConcurrentHashMap<>();
+	private final List<SipuadaPlugin> children;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private volatile long childTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+
+	public CompositeSipuadaPlugin(SipuadaPlugin... children) {
+		this(Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, CompositeSipuadaPlugin.class.getSimpleName());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		}), true, children);
+	}
+
+	public CompositeSipuadaPlugin(ExecutorService executor, SipuadaPlugin... children) {
+		this(executor, false, children);
+	}
+
+	private CompositeSipuadaPlugin(ExecutorService executor, boolean ownsExecutor,
+			SipuadaPlugin... children) {
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.children = Collections.unmodifiableList(Arrays.asList(children));
+		logger.info("{} sipuada plugin instantiated with {} children.",
+				CompositeSipuadaPlugin.class.getName(), this.children.size());
+	}
+
+	public List<SipuadaPlugin> getChildren() {
+		return children;
+	}
+
+	/**
+	 * Bounds how long a request waits for all children to respond. Children that do
+	 * not respond in time count as failed for that request.
+	 */
+	public void setChildTimeout(long timeout, TimeUnit unit) {
+		childTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	@Override
+	public SessionDescription generateOffer(final String callId, final RequestMethod method,
+			final String localAddress) {
+		List<Future<SessionDescription>> pendingContributions = submit(callId,
+				new ChildCall<SessionDescription>() {
+
+			@Override
+			public SessionDescription call(int index, SipuadaPlugin child) {
+				return child.generateOffer(callId, method, localAddress);
+			}
+
+		});
+		List<SessionDescription> contributions = collect(callId, pendingContributions);
+		SessionDescription offer = merge(callId, contributions);
+		if (offer == null) {
+			abandon(callId, pendingContributions, contributions);
+			return null;
+		}
+		logger.info("{} generating offer {{}} in context of call invitation {} for a {} request...",
+				CompositeSipuadaPlugin.class.getName(), offer, callId, method);
+		return offer;
+	}
+
+	@Override
+	public void receiveAnswerToAcceptedOffer(final String callId, final SessionDescription answer) {
+		int[] layout = parseLayout(answer);
+		final List<SessionDescription> slices = split(callId, answer,
+				layout != null ? layout : layouts.get(callId));
+		fanOut(callId, new ChildCall<Void>() {
+
+			@Override
+			public Void call(int index, SipuadaPlugin child) {
+				child.receiveAnswerToAcceptedOffer(callId, slices.get(index));
+				return null;
+			}
+
+		});
+		logger.info("{} received answer {{}} in context of call invitation {}...",
+				CompositeSipuadaPlugin.class.getName(), answer, callId);
+	}
+
+	@Override
+	public SessionDescription generateAnswer(final String callId, final RequestMethod method,
+			final SessionDescription offer, final String localAddress) {
+		int[] layout = parseLayout(offer);
+		final List<SessionDescription> slices = split(callId, offer,
+				layout != null ? layout : layouts.get(callId));
+		List<Future<SessionDescription>> pendingContributions = submit(callId,
+				new ChildCall<SessionDescription>() {
+
+			@Override
+			public SessionDescription call(int index, SipuadaPlugin child) {
+				return child.generateAnswer(callId, method, slices.get(index), localAddress);
+			}
+
+		});
+		List<SessionDescription> contributions = collect(callId, pendingContributions);
+		SessionDescription answer = merge(callId, contributions);
+		if (answer == null) {
+			abandon(callId, pendingContributions, contributions);
+			return null;
+		}
+		logger.info("{} generating answer {{}} to offer {{}} in context of call invitation {} for a {} request...",
+				CompositeSipuadaPlugin.class.getName(), answer, offer, callId, method);
+		return answer;
+	}
+
+	@Override
+	public boolean performSessionSetup(final String callId, final SipUserAgent userAgent) {
+		List<Boolean> results = fanOut(callId, new ChildCall<Boolean>() {
+
+			@Override
+			public Boolean call(int index, SipuadaPlugin child) {
+				return child.performSessionSetup(callId, userAgent);
+			}
+
+		});
+		logger.info("{} performed session setup in context of call {}: {}",
+				CompositeSipuadaPlugin.class.getName(), callId, results);
+		return allSucceeded(results);
+	}
+
+	@Override
+	public boolean performSessionTermination(final String callId) {
+		List<Boolean> results = fanOut(callId, new ChildCall<Boolean>() {
+
+			@Override
+			public Boolean call(int index, SipuadaPlugin child) {
+				return child.performSessionTermination(callId);
+			}
+
+		});
+		layouts.remove(callId);
+		logger.info("{} performed session tear down in context of call {}: {}",
+				CompositeSipuadaPlugin.class.getName(), callId, results);
+		return allSucceeded(results);
+	}
+
+	/**
+	 * Closes every closeable child, and the executor if it was created by this plugin.
+	 */
+	@Override
+	public void close() {
+		for (SipuadaPlugin child : children) {
+			if (child instanceof Closeable) {
+				try {
+					((Closeable) child).close();
+				} catch (IOException anyIssue) {
+					logger.error("{} could not close child {}.", CompositeSipuadaPlugin.class.getName(),
+							child.getClass().getSimpleName(), anyIssue);
+				}
+			}
+		}
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	private <T> List<T> fanOut(String callId, ChildCall<T> childCall) {
+		return collect(callId, submit(callId, childCall));
+	}
+
+	private <T> List<Future<T>> submit(String callId, final ChildCall<T> childCall) {
+		List<Future<T>> pendingResults = new ArrayList<>();
+		for (int index = 0; index < children.size(); index++) {
+			final int childIndex = index;
+			final SipuadaPlugin child = children.get(index);
+			pendingResults.add(executor.submit(new Callable<T>() {
+
+				@Override
+				public T call() throws Exception {
+					return childCall.call(childIndex, child);
+				}
+
+			}));
+		}
+		return pendingResults;
+	}
+
+	private <T> List<T> collect(String callId, List<Future<T>> pendingResults) {
+		long deadline = System.nanoTime() + childTimeoutNanos;
+		List<T> results = new ArrayList<>();
+		for (int index = 0; index < pendingResults.size(); index++) {
+			try {
+				results.add(pendingResults.get(index).get(Math.max(0, deadline - System.nanoTime()),
+						TimeUnit.NANOSECONDS));
+			} catch (InterruptedException interrupted) {
+				Thread.currentThread().interrupt();
+				results.add(null);
+			} catch (TimeoutException timeout) {
+				logger.error("{} child {} did not respond in time in context of call {}.",
+						CompositeSipuadaPlugin.class.getName(),
+						children.get(index).getClass().getSimpleName(), callId);
+				results.add(null);
+			} catch (Throwable anyIssue) {
+				logger.error("{} child {} failed in context of call {}.",
+						CompositeSipuadaPlugin.class.getName(),
+						children.get(index).getClass().getSimpleName(), callId, anyIssue);
+				results.add(null);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Terminates the call on every child that contributed to a description that could
+	 * not be merged, and on every child still working on it once it finishes, so no
+	 * child is left holding state for a call the caller never learns about.
+	 */
+	private void abandon(final String callId, List<Future<SessionDescription>> pendingContributions,
+			List<SessionDescription> contributions) {
+		layouts.remove(callId);
+		for (int index = 0; index < children.size(); index++) {
+			final Future<SessionDescription> pendingContribution = pendingContributions.get(index);
+			if (contributions.get(index) == null && pendingContribution.isDone()) {
+				continue;
+			}
+			final SipuadaPlugin child = children.get(index);
+			try {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							pendingContribution.get();
+						} catch (Throwable anyIssue) {
+							logger.debug("{} child {} failed in context of abandoned call {}.",
+									CompositeSipuadaPlugin.class.getName(), child.getClass().getSimpleName(),
+									callId, anyIssue);
+						}
+						try {
+							child.performSessionTermination(callId);
+						} catch (Throwable anyIssue) {
+							logger.error("{} could not terminate abandoned call {} on child {}.",
+									CompositeSipuadaPlugin.class.getName(), callId,
+									child.getClass().getSimpleName(), anyIssue);
+						}
+					}
+
+				});
+			} catch (RejectedExecutionException rejected) {
+				logger.error("{} could not terminate abandoned call {} on child {} as it is closed.",
+						CompositeSipuadaPlugin.class.getName(), callId, child.getClass().getSimpleName());
+			}
+		}
+	}
+
+	private boolean allSucceeded(List<Boolean> results) {
+		for (Boolean result : results) {
+			if (result == null || !result) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private SessionDescription merge(String callId, List<SessionDescription> contributions) {
+		if (contributions.isEmpty() || contributions.contains(null)) {
+			logger.error("{} could not merge contributions {} in context of call {} as some child failed.",
+					CompositeSipuadaPlugin.class.getName(), contributions, callId);
+			return null;
+		}
+		try {
+			SessionDescription merged = (SessionDescription) contributions.get(0).clone();
+			Vector<AttributeField> attributeFields = new Vector<>();
+			Vector<MediaDescription> mediaDescriptions = new Vector<>();
+			List<String> attributeNames = new ArrayList<>();
+			int[] layout = new int[contributions.size()];
+			for (int index = 0; index < contributions.size(); index++) {
+				SessionDescription contribution = (SessionDescription) contributions.get(index).clone();
+				Vector<AttributeField> contributedAttributeFields = contribution.getAttributes(false);
+				if (contributedAttributeFields != null) {
+					for (AttributeField attributeField : contributedAttributeFields) {
+						String attributeName = attributeField.getName() == null
+								? attributeField.getValue() : attributeField.getName();
+						if (!attributeNames.contains(attributeName)) {
+							attributeNames.add(attributeName);
+							attributeFields.add(attributeField);
+						}
+					}
+				}
+				Vector<MediaDescription> contributedMediaDescriptions
+						= contribution.getMediaDescriptions(false);
+				if (contributedMediaDescriptions != null) {
+					mediaDescriptions.addAll(contributedMediaDescriptions);
+					layout[index] = contributedMediaDescriptions.size();
+				}
+				if (merged.getConnection() == null && contribution.getConnection() != null) {
+					merged.setConnection(contribution.getConnection());
+				}
+			}
+			merged.setAttributes(attributeFields);
+			merged.setMediaDescriptions(mediaDescriptions);
+			merged.setAttribute(LAYOUT_ATTRIBUTE, formatLayout(layout));
+			layouts.put(callId, layout);
+			return merged;
+		} catch (CloneNotSupportedException | SdpException anyIssue) {
+			logger.error("{} could not merge contributions in context of call {}.",
+					CompositeSipuadaPlugin.class.getName(), callId, anyIssue);
+			return null;
+		}
+	}
+
+	/**
+	 * Splits a remote SDP into one copy per child holding only the media lines that
+	 * answer, or are meant for, that child's lines. Without a usable layout every
+	 * child gets the whole SDP.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<SessionDescription> split(String callId, SessionDescription remote, int[] layout) {
+		List<SessionDescription> slices = new ArrayList<>();
+		try {
+			Vector<MediaDescription> mediaDescriptions = remote.getMediaDescriptions(false);
+			int lines = mediaDescriptions == null ? 0 : mediaDescriptions.size();
+			if (layout != null && layout.length == children.size() && sum(layout) == lines) {
+				int firstLine = 0;
+				for (int index = 0; index < children.size(); index++) {
+					SessionDescription slice = (SessionDescription) remote.clone();
+					Vector<MediaDescription> sliceMediaDescriptions = slice.getMediaDescriptions(false);
+					slice.setMediaDescriptions(new Vector<>(sliceMediaDescriptions
+							.subList(firstLine, firstLine + layout[index])));
+					slice.removeAttribute(LAYOUT_ATTRIBUTE);
+					slices.add(slice);
+					firstLine += layout[index];
+				}
+				return slices;
+			}
+			logger.warn("{} has no media line layout matching {} lines in context of call {}, "
+					+ "so every child gets the whole SDP.", CompositeSipuadaPlugin.class.getName(),
+					lines, callId);
+		} catch (CloneNotSupportedException | SdpException anyIssue) {
+			logger.error("{} could not split remote SDP in context of call {}, so every child gets "
+					+ "the whole SDP.", CompositeSipuadaPlugin.class.getName(), callId, anyIssue);
+		}
+		slices.clear();
+		for (int index = 0; index < children.size(); index++) {
+			slices.add(remote);
+		}
+		return slices;
+	}
+
+	private int[] parseLayout(SessionDescription sdp) {
+		try {
+			String layout = sdp.getAttribute(LAYOUT_ATTRIBUTE);
+			if (layout == null || layout.trim().isEmpty()) {
+				return null;
+			}
+			String[] counts = layout.trim().split("\\s+");
+			int[] parsed = new int[counts.length];
+			for (int index = 0; index < counts.length; index++) {
+				parsed[index] = Integer.parseInt(counts[index]);
+			}
+			return parsed;
+		} catch (Throwable anyIssue) {
+			return null;
+		}
+	}
+
+	private String formatLayout(int[] layout) {
+		StringBuilder formatted = new StringBuilder();
+		for (int count : layout) {
+			formatted.append(formatted.length() == 0 ? "" : " ").append(count);
+		}
+		return formatted.toString();
+	}
+
+	private int sum(int[] layout) {
+		int total = 0;
+		for (int count : layout) {
+			total += count;
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.github.sipuada.plugins.drain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class CallDrainer {
+
+	private final Logger logger = LoggerFactory.getLogger(CallDrainer.class);
+
+	public interface Terminator {
+
+		boolean terminate(String callId);
+
+	}
+
+	public interface ProgressListener {
+
+		void onProgress(int terminated, int failed, int total);
+
+	}
+
+	public static class Report {
+
+		private final int total;
+		private final int terminated;
+		private final int failed;
+		private final long elapsedNanos;
+		private final boolean finished;
+
+		Report(int total, int terminated, int failed, long elapsedNanos,
+				boolean finished) {
+			this.total = total;
+			this.terminated = terminated;
+			this.failed = failed;
+			this.elapsedNanos = elapsedNanos;
+			this.finished = finished;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public int getTerminated() {
+			return terminated;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public int getPending() {
+			return total - terminated - failed;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public boolean isFinished() {
+			return finished;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%d/%d calls terminated, %d failed, %d "
+				+ "pending after %.3fs", terminated, total, failed, getPending(),
+				elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+		}
+
+	}
+
+	private static final int BATCH_SIZE = 64;
+
+	private final int parallelism;
+
+	public CallDrainer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public CallDrainer(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public Report drain(Collection<String> callIds, final Terminator terminator,
+			long timeout, TimeUnit unit, final ProgressListener listener) {
+		long start = System.nanoTime();
+		final List<String> pendingCallIds = new ArrayList<>(callIds);
+		final int total = pendingCallIds.size();
+		final int reportEvery = Math.max(1, total / 100);
+		final AtomicInteger terminated = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicBoolean expired = new AtomicBoolean();
+		logger.info("{} tearing down {} calls...", CallDrainer.class.getSimpleName(),
+			total);
+
+		class Teardown extends RecursiveAction {
+
+			private static final long serialVersionUID = 1L;
+
+			private final int from;
+			private final int to;
+
+			Teardown(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if (to - from > BATCH_SIZE) {
+					int middle = (from + to) >>> 1;
+					invokeAll(new Teardown(from, middle), new Teardown(middle, to));
+					return;
+				}
+				for (int index = from; index < to && !expired.get(); index++) {
+					String callId = pendingCallIds.get(index);
+					boolean success;
+					try {
+						success = terminator.terminate(callId);
+					} catch (Throwable anyIssue) {
+						logger.error("{} could not tear down call {}.",
+							CallDrainer.class.getSimpleName(), callId, anyIssue);
+						success = false;
+					}
+					int done = success ? terminated.incrementAndGet()
+						+ failed.get() : failed.incrementAndGet() + terminated.get();
+					if (listener != null && done % reportEvery == 0) {
+						listener.onProgress(terminated.get(), failed.get(), total);
+					}
+				}
+			}
+
+		}
+
+		boolean finished = true;
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			ForkJoinTask<Void> teardown = pool.submit(new Teardown(0, total));
+			teardown.get(timeout, unit);
+		} catch (TimeoutException timedOut) {
+			finished = false;
+			expired.set(true);
+		} catch (InterruptedException interrupted) {
+			finished = false;
+			expired.set(true);
+			Thread.currentThread().interrupt();
+		} catch (Throwable anyIssue) {
+			finished = false;
+			logger.error("{} could not tear down all calls.",
+				CallDrainer.class.getSimpleName(), anyIssue);
+		} finally {
+			pool.shutdownNow();
+		}
+		Report report = new Report(total, terminated.get(), failed.get(),
+			System.nanoTime() - start, finished);
+		if (listener != null) {
+			listener.onProgress(report.getTerminated(), report.getFailed(), total);
+		}
+		logger.info("{} finished: {}", CallDrainer.class.getSimpleName(), report);
+		return report;
+	}
+
+}
@@ -0,0 +1,16 @@
+package org.github.sipuada.plugins.drain;
+
+import java.util.concurrent.TimeUnit;
+
+import org.github.sipuada.plugins.SipuadaPlugin;
+
+public interface DrainableSipuadaPlugin extends SipuadaPlugin {
+
+	CallDrainer.Report drain(long timeout, TimeUnit unit,
+		CallDrainer.ProgressListener listener);
+
+	boolean isDraining();
+
+	void resume();
+
+}
@@ -0,0 +1,154 @@
+package org.github.sipuada.plugins.execution;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs blocking per-call work, such as harvesting or waiting on sockets, and
+ * keeps track of it per call so that all of a call's pending work can be
+ * cancelled at once when the call is terminated.
+ * <p>
+ * When virtual threads are requested and the running JVM supports them, each
+ * task gets its own virtual thread, so tens of thousands of calls can be waiting
+ * at the same time without sizing a pool. Otherwise tasks run on a cached pool
+ * of daemon platform threads.
+ */
+public class BlockingWorkExecutor {
+
+	private final Logger logger = LoggerFactory.getLogger(BlockingWorkExecutor.class);
+
+	class CallTask<T> extends FutureTask<T> {
+		private final String callId;
+		CallTask(String callId, Callable<T> callable) {
+			super(callable);
+			this.callId = callId;
+		}
+		@Override
+		protected void done() {
+			scopes.computeIfPresent(callId, new BiFunction<String, Set<Future<?>>, Set<Future<?>>>() {
+
+				@Override
+				public Set<Future<?>> apply(String callId, Set<Future<?>> scope) {
+					scope.remove(CallTask.this);
+					return scope.isEmpty() ? null : scope;
+				}
+
+			});
+		}
+	}
+	private final Map<String, Set<Future<?>>> scopes = new ConcurrentHashMap<>();
+
+	private final ExecutorService executor;
+	private final boolean virtual;
+
+	public BlockingWorkExecutor(final String name, boolean virtualThreads) {
+		ExecutorService virtualExecutor = virtualThreads ? createVirtualThreadExecutor() : null;
+		if (virtualExecutor != null) {
+			executor = virtualExecutor;
+			virtual = true;
+		} else {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				private final AtomicInteger nextThread = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, String.format("%s-%d",
+						name, nextThread.incrementAndGet()));
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+			virtual = false;
+			if (virtualThreads) {
+				logger.warn("{} for {} fell back to platform threads as virtual threads "
+					+ "are not available in this JVM.", BlockingWorkExecutor.class
+					.getSimpleName(), name);
+			}
+		}
+	}
+
+	private ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException unsupported) {
+			return null;
+		}
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	public <T> Future<T> submit(String callId, Callable<T> callable) {
+		final CallTask<T> task = new CallTask<>(callId, callable);
+		scopes.compute(callId, new BiFunction<String, Set<Future<?>>, Set<Future<?>>>() {
+
+			@Override
+			public Set<Future<?>> apply(String callId, Set<Future<?>> scope) {
+				if (scope == null) {
+					scope = new HashSet<>();
+				}
+				scope.add(task);
+				return scope;
+			}
+
+		});
+		executor.execute(task);
+		return task;
+	}
+
+	public Future<?> execute(String callId, final Runnable runnable) {
+		return submit(callId, Executors.callable(runnable));
+	}
+
+	/**
+	 * Cancels and interrupts every task still pending or running for the call,
+	 * returning how many were cancelled.
+	 */
+	public int cancel(String callId) {
+		Set<Future<?>> scope = scopes.remove(callId);
+		if (scope == null) {
+			return 0;
+		}
+		int cancelled = 0;
+		for (Future<?> task : new ArrayList<>(scope)) {
+			if (task.cancel(true)) {
+				cancelled++;
+			}
+		}
+		if (cancelled > 0) {
+			logger.debug("{} cancelled {} pending tasks of call {}.",
+				BlockingWorkExecutor.class.getSimpleName(), cancelled, callId);
+		}
+		return cancelled;
+	}
+
+	public int getPendingCalls() {
+		return scopes.size();
+	}
+
+	public void shutdown() {
+		for (String callId : scopes.keySet()) {
+			cancel(callId);
+		}
+		executor.shutdownNow();
+	}
+
+}
@@ -2,17 +2,47 @@ package org.github.sipuada.plugins.ice4j;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.github.sipuada.Constants.RequestMethod;
 import org.github.sipuada.SipUserAgent;
 import org.github.sipuada.plugins.SipuadaPlugin;
+import org.github.sipuada.plugins.admission.AdmissionControlledSipuadaPlugin;
+import org.github.sipuada.plugins.admission.AdmissionController;
+import org.github.sipuada.plugins.admission.AdmissionDecision;
+import org.github.sipuada.plugins.batch.BatchOfferSipuadaPlugin;
+import org.github.sipuada.plugins.drain.CallDrainer;
+import org.github.sipuada.plugins.drain.DrainableSipuadaPlugin;
+import org.github.sipuada.plugins.execution.BlockingWorkExecutor;
+import org.github.sipuada.plugins.metrics.CallSetupPhaseEvent;
+import org.github.sipuada.plugins.metrics.PluginMetrics;
+import org.github.sipuada.plugins.metrics.PluginMetrics.Method;
+import org.github.sipuada.plugins.reinvite.ReinviteSipuadaPlugin;
+import org.github.sipuada.plugins.reinvite.SdpRevisions;
+import org.github.sipuada.plugins.state.CallState;
+import org.github.sipuada.plugins.state.CallStateListener;
+import org.github.sipuada.plugins.state.CallStateListeners;
+import org.github.sipuada.plugins.state.CallStateTransition;
+import org.github.sipuada.plugins.state.RecoverableSipuadaPlugin;
 import org.ice4j.Transport;
 import org.ice4j.TransportAddress;
 import org.ice4j.ice.Agent;
@@ -26,10 +56,12 @@ import org.ice4j.test.SdpUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.javax.sdp.SdpException;
 import android.javax.sdp.SdpFactory;
 import android.javax.sdp.SessionDescription;
 
-public class Ice4JSipuadaPlugin implements SipuadaPlugin {
+public class Ice4JSipuadaPlugin implements BatchOfferSipuadaPlugin, DrainableSipuadaPlugin,
+		ReinviteSipuadaPlugin, RecoverableSipuadaPlugin, AdmissionControlledSipuadaPlugin, Closeable {
 
 	private final Logger logger = LoggerFactory.getLogger(Ice4JSipuadaPlugin.class);
 
@@ -54,88 +86,393 @@ public class Ice4JSipuadaPlugin implements SipuadaPlugin {
 		public void setAnswer(SessionDescription answer) {
 			storage.put("answer", answer);
 		}
+		public SessionDescription getLocal() {
+			return storage.get("local");
+		}
+		public void setLocal(SessionDescription local) {
+			storage.put("local", local);
+		}
+	}
+	private final Map<String, Record> records = new ConcurrentHashMap<>();
+	private final Map<String, Agent> agents = new ConcurrentHashMap<>();
+	private final Map<String, MediaDirection> pendingDirections = new ConcurrentHashMap<>();
+
+	public interface IceStateListener {
+
+		void onIceStateChanged(String callId, IceProcessingState state);
+
 	}
-	private final Map<String, Record> records = new HashMap<>();
-	private final Map<String, Agent> agents = new HashMap<>();
+	private final List<IceStateListener> iceStateListeners = new CopyOnWriteArrayList<>();
+
+	public static final String DEFAULT_STUN_SERVER_HOST = "stun.siplogin.de";
+	public static final int DEFAULT_STUN_SERVER_PORT = 3478;
+	private final String stunServerHost;
+	private final int stunServerPort;
+
+	private static final int MIN_PORT = 40000;
+	private static final int MAX_PORT = 60000;
+	private final AtomicInteger nextPreferredPort = new AtomicInteger(MIN_PORT);
+	private volatile boolean draining = false;
+	private volatile AdmissionController admissionController;
+	private final BlockingWorkExecutor blockingWork;
+
+	private final PluginMetrics metrics;
+	private final CallStateListeners callStateListeners = new CallStateListeners();
 
 	public Ice4JSipuadaPlugin() {
-		logger.info("{} sipuada plugin instantiated.", Ice4JSipuadaPlugin.class.getName());
+		this(false);
+	}
+
+	/**
+	 * With virtual threads, harvesting and the blocking socket work done once a call's
+	 * connectivity is established run on a virtual thread each instead of a pool.
+	 */
+	public Ice4JSipuadaPlugin(boolean virtualThreads) {
+		this(DEFAULT_STUN_SERVER_HOST, DEFAULT_STUN_SERVER_PORT, virtualThreads);
+	}
+
+	/**
+	 * Harvests server reflexive candidates from the given STUN server, or only host
+	 * candidates if the STUN server host is null.
+	 */
+	public Ice4JSipuadaPlugin(String stunServerHost, int stunServerPort) {
+		this(stunServerHost, stunServerPort, false);
+	}
+
+	public Ice4JSipuadaPlugin(String stunServerHost, int stunServerPort, boolean virtualThreads) {
+		this.stunServerHost = stunServerHost;
+		this.stunServerPort = stunServerPort;
+		blockingWork = new BlockingWorkExecutor(Ice4JSipuadaPlugin.class.getSimpleName()
+				+ "-blocking-work", virtualThreads);
+		metrics = new PluginMetrics(Ice4JSipuadaPlugin.class.getSimpleName(),
+				Integer.toHexString(System.identityHashCode(this)));
+		metrics.registerGauge("records", new PluginMetrics.Gauge() {
+
+			@Override
+			public long read() {
+				return records.size();
+			}
+
+		});
+		metrics.registerGauge("agents", new PluginMetrics.Gauge() {
+
+			@Override
+			public long read() {
+				return agents.size();
+			}
+
+		});
+		metrics.register();
+		logger.info("{} sipuada plugin instantiated with {}{}.", Ice4JSipuadaPlugin.class.getName(),
+				stunServerHost == null ? "host candidates only" : String.format("STUN server %s:%d",
+				stunServerHost, stunServerPort), blockingWork.isVirtual() ? " and virtual threads" : "");
+	}
+
+	public PluginMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Frees the agents of calls still active, stops pending blocking work and
+	 * unpublishes this plugin's metrics.
+	 */
+	@Override
+	public void close() {
+		for (String callId : new HashSet<>(agents.keySet())) {
+			discardCallState(callId);
+		}
+		blockingWork.shutdown();
+		metrics.unregister();
+		logger.info("{} sipuada plugin closed.", Ice4JSipuadaPlugin.class.getName());
 	}
 
 	@Override
 	public SessionDescription generateOffer(String callId, RequestMethod method, String localAddress) {
-		Agent agent = new Agent();
-		agents.put(callId, agent);
-		InetAddress inetAddress;
+		long startNanos = System.nanoTime();
+		if (draining) {
+			logger.warn("{} refused to generate offer in context of call invitation {} while draining.",
+					Ice4JSipuadaPlugin.class.getName(), callId);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
+		Record record = records.get(callId);
+		if (record != null && record.getAnswer() != null) {
+			try {
+				SessionDescription offer = reviseSdp(record.getLocal(), pendingDirections.remove(callId));
+				record.setOffer(offer);
+				record.setLocal(offer);
+				notifyCallState(CallStateTransition.OFFER, callId, CallState.Role.CALLER, offer, null);
+				logger.info("{} generating in-dialog offer {{}} in context of call {} for a {} request...",
+						Ice4JSipuadaPlugin.class.getName(), offer, callId, method);
+				return metrics.completed(Method.GENERATE_OFFER, startNanos, offer);
+			} catch (Throwable anyException) {
+				logger.error("Could not generate in-dialog offer. Crash:", anyException);
+				return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+			}
+		}
+		if (!admit(callId, "offer")) {
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
 		try {
-			inetAddress = InetAddress.getByName("stun.siplogin.de");
-			TransportAddress transportAddress = new TransportAddress(inetAddress, 3478, Transport.UDP);
-			agent.addCandidateHarvester(new StunCandidateHarvester(transportAddress));
-			IceMediaStream stream = agent.createMediaStream("audio");
-			agent.createComponent(stream, Transport.UDP, 40000, 40000, 60000);
-			String addressesSdp = SdpUtils.createSDPDescription(agent);
-			SessionDescription offer = SdpFactory.getInstance()
-					.createSessionDescriptionFromString(addressesSdp);
-			records.put(callId, new Record(offer));
+			Agent agent = createAgent(callId, resolveStunServer(callId), reservePreferredPorts(1));
+			agents.put(callId, agent);
+			SessionDescription offer = createSdp(callId, agent);
+			record = new Record(offer);
+			record.setLocal(offer);
+			records.put(callId, record);
+			notifyCallState(CallStateTransition.OFFER, callId, CallState.Role.CALLER, offer, null);
 			logger.info("{} generating offer {{}} in context of call invitation {} for a {} request...",
 					Ice4JSipuadaPlugin.class.getName(), offer, callId, method);
-			return offer;
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, offer);
 		} catch (Throwable anyException) {
 			logger.error("Could not generate offer. Crash:", anyException);
+			discardCallState(callId);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
+	}
+
+	@Override
+	public Map<String, SessionDescription> generateOffers(List<String> callIds, RequestMethod method,
+			String localAddress) {
+		long startNanos = System.nanoTime();
+		Map<String, SessionDescription> offers = new LinkedHashMap<>();
+		if (callIds.isEmpty()) {
+			return offers;
+		}
+		if (draining) {
+			logger.warn("{} refused to generate {} offers while draining.",
+					Ice4JSipuadaPlugin.class.getName(), callIds.size());
+			for (String callId : callIds) {
+				offers.put(callId, metrics.completed(Method.GENERATE_OFFER, startNanos, null));
+			}
+			return offers;
+		}
+		final TransportAddress stunServer;
+		try {
+			stunServer = resolveStunServer(callIds.get(0));
+		} catch (Throwable anyException) {
+			logger.error("Could not generate offers. Crash:", anyException);
+			for (String callId : callIds) {
+				offers.put(callId, metrics.completed(Method.GENERATE_OFFER, startNanos, null));
+			}
+			return offers;
+		}
+		int firstPreferredPort = reservePreferredPorts(callIds.size());
+		List<Future<Agent>> pendingAgents = new ArrayList<>();
+		for (int index = 0; index < callIds.size(); index++) {
+			final String callId = callIds.get(index);
+			final int preferredPort = MIN_PORT + (firstPreferredPort - MIN_PORT + index)
+					% (MAX_PORT - MIN_PORT);
+			if (!admit(callId, "offer")) {
+				pendingAgents.add(null);
+				continue;
+			}
+			pendingAgents.add(blockingWork.submit(callId, new Callable<Agent>() {
+
+				@Override
+				public Agent call() throws Exception {
+					return createAgent(callId, stunServer, preferredPort);
+				}
+
+			}));
+		}
+		for (int index = 0; index < callIds.size(); index++) {
+			String callId = callIds.get(index);
+			if (pendingAgents.get(index) == null) {
+				offers.put(callId, metrics.completed(Method.GENERATE_OFFER, startNanos, null));
+				continue;
+			}
+			try {
+				Agent agent = pendingAgents.get(index).get();
+				agents.put(callId, agent);
+				SessionDescription offer = createSdp(callId, agent);
+				Record record = new Record(offer);
+				record.setLocal(offer);
+				records.put(callId, record);
+				notifyCallState(CallStateTransition.OFFER, callId, CallState.Role.CALLER, offer, null);
+				logger.info("{} generating offer {{}} in context of call invitation {} for a {} request...",
+						Ice4JSipuadaPlugin.class.getName(), offer, callId, method);
+				offers.put(callId, metrics.completed(Method.GENERATE_OFFER, startNanos, offer));
+			} catch (Throwable anyException) {
+				logger.error("Could not generate offer. Crash:", anyException);
+				discardCallState(callId);
+				offers.put(callId, metrics.completed(Method.GENERATE_OFFER, startNanos, null));
+			}
+		}
+		return offers;
+	}
+
+	private TransportAddress resolveStunServer(String callId) throws UnknownHostException {
+		if (stunServerHost == null) {
 			return null;
 		}
+		CallSetupPhaseEvent stunResolutionPhase = CallSetupPhaseEvent.start
+				(Ice4JSipuadaPlugin.class.getSimpleName(), callId, "stunResolution");
+		InetAddress inetAddress = InetAddress.getByName(stunServerHost);
+		stunResolutionPhase.commit();
+		return new TransportAddress(inetAddress, stunServerPort, Transport.UDP);
+	}
+
+	private int reservePreferredPorts(int count) {
+		return MIN_PORT + (nextPreferredPort.getAndAdd(count) & Integer.MAX_VALUE)
+				% (MAX_PORT - MIN_PORT);
+	}
+
+	private Agent createAgent(String callId, TransportAddress stunServer, int preferredPort)
+			throws IOException {
+		Agent agent = new Agent();
+		if (stunServer != null) {
+			agent.addCandidateHarvester(new StunCandidateHarvester(stunServer));
+		}
+		IceMediaStream stream = agent.createMediaStream("audio");
+		CallSetupPhaseEvent harvestingPhase = CallSetupPhaseEvent.start
+				(Ice4JSipuadaPlugin.class.getSimpleName(), callId, "harvesting");
+		agent.createComponent(stream, Transport.UDP, preferredPort, MIN_PORT, MAX_PORT);
+		harvestingPhase.commit();
+		return agent;
+	}
+
+	private SessionDescription createSdp(String callId, Agent agent) throws Throwable {
+		CallSetupPhaseEvent createSdpPhase = CallSetupPhaseEvent.start
+				(Ice4JSipuadaPlugin.class.getSimpleName(), callId, "createSdp");
+		String addressesSdp = SdpUtils.createSDPDescription(agent);
+		SessionDescription sdp = SdpFactory.getInstance()
+				.createSessionDescriptionFromString(addressesSdp);
+		createSdpPhase.commit();
+		return sdp;
 	}
 
 	@Override
 	public void receiveAnswerToAcceptedOffer(String callId, SessionDescription answer) {
+		long startNanos = System.nanoTime();
 		Record record = records.get(callId);
+		if (record == null) {
+			logger.error("{} received answer {{}} in context of unknown call invitation {}.",
+					Ice4JSipuadaPlugin.class.getName(), answer, callId);
+			metrics.failed(Method.RECEIVE_ANSWER);
+			return;
+		}
+		SessionDescription previousAnswer = record.getAnswer();
 		record.setAnswer(answer);
+		notifyCallState(CallStateTransition.ANSWER, callId, CallState.Role.CALLER, null, answer);
+		if (previousAnswer != null) {
+			logger.info("{} received in-dialog answer {{}} to offer {{}} in context of call {}, keeping ICE session...",
+					Ice4JSipuadaPlugin.class.getName(), answer, record.getOffer(), callId);
+			metrics.completed(Method.RECEIVE_ANSWER, startNanos);
+			return;
+		}
+		setupStarted(callId);
 		Agent agent = agents.get(callId);
+		CallSetupPhaseEvent parseSdpPhase = CallSetupPhaseEvent.start
+				(Ice4JSipuadaPlugin.class.getSimpleName(), callId, "parseSdp");
 		try {
 			SdpUtils.parseSDP(agent, answer.toString());
 		} catch (Exception anyException) {
 			logger.error("Could not receive answer to accepted offer. Crash:", anyException);
 			anyException.printStackTrace();
+			metrics.failed(Method.RECEIVE_ANSWER);
+		} finally {
+			parseSdpPhase.commit();
 		}
 		logger.info("{} received answer {{}} to offer {{}} in context of call invitation {}...",
 				Ice4JSipuadaPlugin.class.getName(), answer, record.getOffer(), callId);
+		metrics.completed(Method.RECEIVE_ANSWER, startNanos);
 	}
 
 	@Override
 	public SessionDescription generateAnswer(String callId, RequestMethod method, SessionDescription offer, String localAddress) {
-		Agent agent = new Agent();
-		agents.put(callId, agent);
-		InetAddress inetAddress;
+		long startNanos = System.nanoTime();
+		if (draining) {
+			logger.warn("{} refused to generate answer in context of call invitation {} while draining.",
+					Ice4JSipuadaPlugin.class.getName(), callId);
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+		}
+		Record record = records.get(callId);
+		if (record != null && record.getAnswer() != null) {
+			try {
+				SessionDescription answer = reviseSdp(record.getLocal(),
+						SdpRevisions.getMediaDirection(offer).getAnswerDirection());
+				record.setOffer(offer);
+				record.setAnswer(answer);
+				record.setLocal(answer);
+				notifyCallState(CallStateTransition.ANSWER, callId, CallState.Role.CALLEE, offer, answer);
+				logger.info("{} generating in-dialog answer {{}} to offer {{}} in context of call {} for a {} request...",
+						Ice4JSipuadaPlugin.class.getName(), answer, offer, callId, method);
+				return metrics.completed(Method.GENERATE_ANSWER, startNanos, answer);
+			} catch (Throwable anyException) {
+				logger.error("Could not generate in-dialog answer. Crash:", anyException);
+				return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+			}
+		}
+		if (!admit(callId, "answer")) {
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+		}
+		setupStarted(callId);
 		try {
-			inetAddress = InetAddress.getByName("stun.siplogin.de");
-			TransportAddress transportAddress = new TransportAddress(inetAddress, 3478, Transport.UDP);
-			agent.addCandidateHarvester(new StunCandidateHarvester(transportAddress));
-			IceMediaStream stream = agent.createMediaStream("audio");
-			agent.createComponent(stream, Transport.UDP, 40000, 40000, 60000);
-			String addressesSdp = SdpUtils.createSDPDescription(agent);
-			SessionDescription answer = SdpFactory.getInstance()
-					.createSessionDescriptionFromString(addressesSdp);
-			records.put(callId, new Record(offer, answer));
+			Agent agent = createAgent(callId, resolveStunServer(callId), reservePreferredPorts(1));
+			agents.put(callId, agent);
+			SessionDescription answer = createSdp(callId, agent);
+			record = new Record(offer, answer);
+			record.setLocal(answer);
+			records.put(callId, record);
+			CallSetupPhaseEvent parseSdpPhase = CallSetupPhaseEvent.start
+					(Ice4JSipuadaPlugin.class.getSimpleName(), callId, "parseSdp");
 			SdpUtils.parseSDP(agent, offer.toString());
+			parseSdpPhase.commit();
+			notifyCallState(CallStateTransition.ANSWER, callId, CallState.Role.CALLEE, offer, answer);
 			logger.info("{} generating answer {{}} to offer {{}} in context of call invitation {} for a {} request...",
 					Ice4JSipuadaPlugin.class.getName(), answer, offer, callId, method);
-			return answer;
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, answer);
 		} catch (Throwable anyException) {
 			logger.error("Could not generate answer. Crash:", anyException);
-			return null;
+			discardCallState(callId);
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
 		}
 	}
 
 	@Override
 	public boolean performSessionSetup(String callId, SipUserAgent userAgent) {
+		long startNanos = System.nanoTime();
 		Record record = records.get(callId);
+		if (record == null) {
+			logger.error("{} cannot perform session setup in context of unknown call {}.",
+					Ice4JSipuadaPlugin.class.getName(), callId);
+			return metrics.completed(Method.SESSION_SETUP, startNanos, false);
+		}
 		SessionDescription offer = record.getOffer(), answer = record.getAnswer();
 		Agent agent = agents.get(callId);
+		if (agent == null) {
+			logger.error("{} has no ICE agent to set up session in context of call {}, which was restored "
+					+ "without its candidates.", Ice4JSipuadaPlugin.class.getName(), callId);
+			return metrics.completed(Method.SESSION_SETUP, startNanos, false);
+		}
+		if (agent.isStarted()) {
+			logger.info("{} updating established session in context of call {} without restarting ICE...\nOffer: {{}}\nAnswer: {{}}",
+					Ice4JSipuadaPlugin.class.getName(), callId, offer, answer);
+			return metrics.completed(Method.SESSION_SETUP, startNanos, true);
+		}
+		final CallSetupPhaseEvent connectivityPhase = CallSetupPhaseEvent.start
+				(Ice4JSipuadaPlugin.class.getSimpleName(), callId, "connectivityEstablishment");
 		agent.addStateChangeListener(new PropertyChangeListener() {
 
 			@Override
 			public void propertyChange(PropertyChangeEvent event) {
-				logger.info("We got something out of the newly established ice4j connection.");
+				logger.debug("{} ICE agent of call {} changed {} from {} to {}.",
+						Ice4JSipuadaPlugin.class.getName(), callId, event.getPropertyName(),
+						event.getOldValue(), event.getNewValue());
+				if (event.getNewValue() instanceof IceProcessingState) {
+					for (IceStateListener listener : iceStateListeners) {
+						listener.onIceStateChanged(callId, (IceProcessingState) event.getNewValue());
+					}
+				}
+				if (IceProcessingState.TERMINATED.equals(event.getNewValue())
+						|| IceProcessingState.FAILED.equals(event.getNewValue())) {
+					connectivityPhase.commit();
+					// Failed checks count too, or slow failures would never raise the average.
+					AdmissionController controller = admissionController;
+					if (controller != null) {
+						controller.setupCompleted(callId);
+					}
+				}
 				if (event.getSource() instanceof Agent) {
 					Agent agent = (Agent) event.getSource();
 					if (agent.getState().equals(IceProcessingState.TERMINATED)) {
@@ -143,35 +480,17 @@ public class Ice4JSipuadaPlugin implements SipuadaPlugin {
 							if (stream.getName().contains("audio")) {
 								Component rtpComponent = stream.getComponent(org.ice4j.ice.Component.RTP);
 								CandidatePair rtpPair = rtpComponent.getSelectedPair();
-								IceSocketWrapper wrapper = rtpPair.getIceSocketWrapper();
-								TransportAddress transportAddress = rtpPair.getRemoteCandidate().getTransportAddress();
-								InetAddress remoteHostname = transportAddress.getAddress();
-								int remotePort = transportAddress.getPort();
-								logger.info("Remote peer is listening at {}:{}...", remoteHostname, remotePort);
-								byte bufferSent[] = new byte[20];
-								new Random().nextBytes(bufferSent);
-								DatagramPacket packetToSend = new DatagramPacket(bufferSent, bufferSent.length);
-								packetToSend.setAddress(remoteHostname);
-								packetToSend.setPort(remotePort);
-								try {
-									logger.debug("Trying to send UDP test packet with seed: {}...", bufferSent);
-									wrapper.send(packetToSend);
-									logger.debug("UDP test packet sent!");
-								} catch (IOException couldNotSendTestPacket) {
-									logger.error("UDP test packet could not be sent!", couldNotSendTestPacket);
-								}
-								DatagramPacket packetToReceive = new DatagramPacket(bufferSent, 3);
-								try {
-									logger.debug("Now waiting for remote UDP test packet...");
-									wrapper.receive(packetToReceive);
-									byte bufferReceived[] = packetToReceive.getData();
-									int offset = packetToReceive.getOffset();
-									int length = packetToReceive.getLength();
-									bufferReceived = Arrays.copyOfRange(bufferReceived, offset, offset + length);
-									logger.debug("UDP test packet received with seed: {}!", bufferReceived);
-								} catch (IOException couldNotReceivePacket) {
-									logger.error("UDP test packet could not be received!", couldNotReceivePacket);
-								}
+								final IceSocketWrapper wrapper = rtpPair.getIceSocketWrapper();
+								final TransportAddress transportAddress = rtpPair.getRemoteCandidate()
+										.getTransportAddress();
+								blockingWork.execute(callId, new Runnable() {
+
+									@Override
+									public void run() {
+										exchangeTestPackets(wrapper, transportAddress);
+									}
+
+								});
 							}
 						}
 					}
@@ -180,17 +499,204 @@ public class Ice4JSipuadaPlugin implements SipuadaPlugin {
 
 		});
 		agent.startConnectivityEstablishment();
+		notifyCallState(CallStateTransition.SETUP, callId, null, null, null);
 		logger.info("{} performing session setup in context of call (agent started={}) {}...\nOffer: {{}}\nAnswer: {{}}",
 				Ice4JSipuadaPlugin.class.getName(), agent.isStarted(), callId, offer, answer);
-		return true;
+		return metrics.completed(Method.SESSION_SETUP, startNanos, true);
+	}
+
+	private void exchangeTestPackets(IceSocketWrapper wrapper, TransportAddress transportAddress) {
+		InetAddress remoteHostname = transportAddress.getAddress();
+		int remotePort = transportAddress.getPort();
+		logger.info("Remote peer is listening at {}:{}...", remoteHostname, remotePort);
+		byte bufferSent[] = new byte[20];
+		new Random().nextBytes(bufferSent);
+		DatagramPacket packetToSend = new DatagramPacket(bufferSent, bufferSent.length);
+		packetToSend.setAddress(remoteHostname);
+		packetToSend.setPort(remotePort);
+		try {
+			logger.debug("Trying to send UDP test packet with seed: {}...", bufferSent);
+			wrapper.send(packetToSend);
+			logger.debug("UDP test packet sent!");
+		} catch (IOException couldNotSendTestPacket) {
+			logger.error("UDP test packet could not be sent!", couldNotSendTestPacket);
+		}
+		DatagramPacket packetToReceive = new DatagramPacket(bufferSent, 3);
+		try {
+			logger.debug("Now waiting for remote UDP test packet...");
+			wrapper.receive(packetToReceive);
+			byte bufferReceived[] = packetToReceive.getData();
+			int offset = packetToReceive.getOffset();
+			int length = packetToReceive.getLength();
+			bufferReceived = Arrays.copyOfRange(bufferReceived, offset, offset + length);
+			logger.debug("UDP test packet received with seed: {}!", bufferReceived);
+		} catch (IOException couldNotReceivePacket) {
+			logger.error("UDP test packet could not be received!", couldNotReceivePacket);
+		}
 	}
 
 	@Override
 	public boolean performSessionTermination(String callId) {
+		long startNanos = System.nanoTime();
 		logger.info("{} performing session tear down in context of call {}...",
 				Ice4JSipuadaPlugin.class.getName(), callId);
-		records.remove(callId);
+		freeCall(callId);
+		return metrics.completed(Method.SESSION_TERMINATION, startNanos, true);
+	}
+
+	@Override
+	public void updateMediaDirection(String callId, MediaDirection direction) {
+		pendingDirections.put(callId, direction);
+	}
+
+	private SessionDescription reviseSdp(SessionDescription previous, MediaDirection direction)
+			throws SdpException {
+		SessionDescription revision = SdpRevisions.nextRevision(previous);
+		if (direction != null) {
+			SdpRevisions.setMediaDirection(revision, direction);
+		}
+		return revision;
+	}
+
+	private void freeCall(String callId) {
+		discardCallState(callId);
+		notifyCallState(CallStateTransition.TERMINATION, callId, null, null, null);
+	}
+
+	@Override
+	public void addCallStateListener(CallStateListener listener) {
+		callStateListeners.add(listener);
+	}
+
+	@Override
+	public void removeCallStateListener(CallStateListener listener) {
+		callStateListeners.remove(listener);
+	}
+
+	/**
+	 * Restores the offer/answer record of a call so it can be torn down cleanly. ICE agents and
+	 * their candidates do not survive a restart, so restored calls must be renegotiated before
+	 * their session can be set up again.
+	 */
+	@Override
+	public boolean restoreCallState(CallState state) {
+		try {
+			SdpFactory sdpFactory = SdpFactory.getInstance();
+			SessionDescription offer = sdpFactory.createSessionDescriptionFromString(state.getOffer());
+			SessionDescription answer = state.getAnswer() == null ? null
+					: sdpFactory.createSessionDescriptionFromString(state.getAnswer());
+			Record record = new Record(offer, answer);
+			record.setLocal(state.getRole() == CallState.Role.CALLEE ? answer : offer);
+			records.put(state.getCallId(), record);
+			logger.info("{} restored call {}.", Ice4JSipuadaPlugin.class.getName(), state);
+			return true;
+		} catch (SdpException unexpectedException) {
+			logger.error("{} could not restore call {}.", Ice4JSipuadaPlugin.class.getName(),
+					state.getCallId(), unexpectedException);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean discardCallState(String callId) {
+		pendingDirections.remove(callId);
+		blockingWork.cancel(callId);
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.release(callId);
+		}
+		Agent agent = agents.remove(callId);
+		if (agent != null) {
+			agent.free();
+		}
+		return records.remove(callId) != null || agent != null;
+	}
+
+	public void addIceStateListener(IceStateListener listener) {
+		iceStateListeners.add(listener);
+	}
+
+	public void removeIceStateListener(IceStateListener listener) {
+		iceStateListeners.remove(listener);
+	}
+
+	@Override
+	public void setAdmissionController(AdmissionController admissionController) {
+		if (admissionController != null) {
+			admissionController.setGauge(AdmissionController.Resource.AGENTS, new PluginMetrics.Gauge() {
+
+				@Override
+				public long read() {
+					return agents.size();
+				}
+
+			});
+		}
+		this.admissionController = admissionController;
+	}
+
+	@Override
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	private boolean admit(String callId, String request) {
+		AdmissionController controller = admissionController;
+		if (controller == null) {
+			return true;
+		}
+		AdmissionDecision decision = controller.admit(callId, 1);
+		if (!decision.isAdmitted()) {
+			logger.warn("{} rejected {} in context of call invitation {}: {}.",
+					Ice4JSipuadaPlugin.class.getName(), request, callId, decision);
+			return false;
+		}
 		return true;
 	}
 
+	private void setupStarted(String callId) {
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.setupStarted(callId);
+		}
+	}
+
+	private void notifyCallState(CallStateTransition transition, String callId, CallState.Role role,
+			SessionDescription offer, SessionDescription answer) {
+		if (callStateListeners.isEmpty()) {
+			return;
+		}
+		callStateListeners.fire(transition, new CallState(callId, role,
+				offer == null ? null : offer.toString(), answer == null ? null : answer.toString(),
+				transition == CallStateTransition.SETUP));
+	}
+
+	@Override
+	public CallDrainer.Report drain(long timeout, TimeUnit unit, CallDrainer.ProgressListener listener) {
+		draining = true;
+		Set<String> callIds = new HashSet<>(records.keySet());
+		callIds.addAll(agents.keySet());
+		logger.info("{} draining {} active calls...", Ice4JSipuadaPlugin.class.getName(), callIds.size());
+		return new CallDrainer().drain(callIds, new CallDrainer.Terminator() {
+
+			@Override
+			public boolean terminate(String callId) {
+				freeCall(callId);
+				return true;
+			}
+
+		}, timeout, unit, listener);
+	}
+
+	@Override
+	public boolean isDraining() {
+		return draining;
+	}
+
+	@Override
+	public void resume() {
+		draining = false;
+		logger.info("{} accepting calls again.", Ice4JSipuadaPlugin.class.getName());
+	}
+
 }
@@ -0,0 +1,133 @@
+package org.github.sipuada.plugins.ice4j;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal in-process STUN server that answers Binding requests (RFC 5389) with the
+ * source address they came from, so ICE candidates can be harvested on machines
+ * without access to a public STUN server. Every other message is ignored.
+ */
+public class LocalStunResponder {
+
+	private final Logger logger = LoggerFactory.getLogger(LocalStunResponder.class);
+
+	private static final int HEADER_LENGTH = 20;
+	private static final int BINDING_REQUEST = 0x0001;
+	private static final int BINDING_SUCCESS_RESPONSE = 0x0101;
+	private static final int MAGIC_COOKIE = 0x2112A442;
+	private static final int MAPPED_ADDRESS = 0x0001;
+	private static final int XOR_MAPPED_ADDRESS = 0x0020;
+	private static final int IPV4_FAMILY = 0x01;
+	private static final int IPV6_FAMILY = 0x02;
+
+	private final DatagramSocket socket;
+	private final Thread responder;
+	private final AtomicLong answeredRequests = new AtomicLong();
+	private volatile boolean closed = false;
+
+	public LocalStunResponder() throws SocketException {
+		this(InetAddress.getLoopbackAddress(), 0);
+	}
+
+	public LocalStunResponder(InetAddress bindAddress, int port) throws SocketException {
+		socket = new DatagramSocket(new InetSocketAddress(bindAddress, port));
+		responder = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				respond();
+			}
+
+		}, String.format("%s-%d", LocalStunResponder.class.getSimpleName(), socket.getLocalPort()));
+		responder.setDaemon(true);
+		responder.start();
+		logger.info("{} answering STUN binding requests at {}:{}.",
+				LocalStunResponder.class.getSimpleName(), getAddress().getHostAddress(), getPort());
+	}
+
+	private void respond() {
+		byte[] buffer = new byte[1500];
+		DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+		while (!closed) {
+			try {
+				request.setLength(buffer.length);
+				socket.receive(request);
+				byte[] response = createResponse(buffer, request.getLength(),
+						request.getAddress(), request.getPort());
+				if (response != null) {
+					socket.send(new DatagramPacket(response, response.length,
+							request.getAddress(), request.getPort()));
+					answeredRequests.incrementAndGet();
+				}
+			} catch (IOException ioException) {
+				if (!closed) {
+					logger.error("{} could not answer STUN request.",
+							LocalStunResponder.class.getSimpleName(), ioException);
+				}
+			}
+		}
+	}
+
+	private byte[] createResponse(byte[] request, int length, InetAddress source, int sourcePort) {
+		if (length < HEADER_LENGTH) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.wrap(request, 0, HEADER_LENGTH);
+		int type = header.getShort() & 0xFFFF;
+		header.getShort();
+		if (type != BINDING_REQUEST || header.getInt() != MAGIC_COOKIE) {
+			return null;
+		}
+		byte[] address = source.getAddress();
+		int family = address.length == 4 ? IPV4_FAMILY : IPV6_FAMILY;
+		int attributeLength = 4 + address.length;
+		ByteBuffer response = ByteBuffer.allocate(HEADER_LENGTH + 2 * (4 + attributeLength));
+		response.putShort((short) BINDING_SUCCESS_RESPONSE);
+		response.putShort((short) (2 * (4 + attributeLength)));
+		response.putInt(MAGIC_COOKIE);
+		response.put(request, 8, 12);
+		response.putShort((short) MAPPED_ADDRESS);
+		response.putShort((short) attributeLength);
+		response.put((byte) 0);
+		response.put((byte) family);
+		response.putShort((short) sourcePort);
+		response.put(address);
+		response.putShort((short) XOR_MAPPED_ADDRESS);
+		response.putShort((short) attributeLength);
+		response.put((byte) 0);
+		response.put((byte) family);
+		response.putShort((short) (sourcePort ^ (MAGIC_COOKIE >>> 16)));
+		for (int index = 0; index < address.length; index++) {
+			response.put((byte) (address[index] ^ request[4 + index]));
+		}
+		return response.array();
+	}
+
+	public InetAddress getAddress() {
+		return socket.getLocalAddress();
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	public long getAnsweredRequests() {
+		return answeredRequests.get();
+	}
+
+	public void close() {
+		closed = true;
+		socket.close();
+	}
+
+}
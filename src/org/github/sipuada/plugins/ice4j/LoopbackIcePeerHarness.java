@@ -0,0 +1,108 @@
+package org.github.sipuada.plugins.ice4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.github.sipuada.Constants.RequestMethod;
+import org.ice4j.ice.IceProcessingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.javax.sdp.SessionDescription;
+
+/**
+ * Places calls between two in-process ICE plugins, one acting as caller and the
+ * other as callee, and waits for the caller's agent to select a candidate pair.
+ * Paired with a {@link LocalStunResponder} or with host candidates only, this
+ * exercises the whole ICE setup path without leaving the machine.
+ */
+public class LoopbackIcePeerHarness implements Ice4JSipuadaPlugin.IceStateListener {
+
+	private final Logger logger = LoggerFactory.getLogger(LoopbackIcePeerHarness.class);
+
+	class PendingSetup {
+		final CountDownLatch completion = new CountDownLatch(1);
+		volatile IceProcessingState state;
+	}
+	private final Map<String, PendingSetup> pendingSetups = new ConcurrentHashMap<>();
+
+	private final Ice4JSipuadaPlugin caller;
+	private final Ice4JSipuadaPlugin callee;
+	private final String localAddress;
+
+	public LoopbackIcePeerHarness(Ice4JSipuadaPlugin caller, Ice4JSipuadaPlugin callee,
+			String localAddress) {
+		this.caller = caller;
+		this.callee = callee;
+		this.localAddress = localAddress;
+		caller.addIceStateListener(this);
+	}
+
+	@Override
+	public void onIceStateChanged(String callId, IceProcessingState state) {
+		if (!IceProcessingState.TERMINATED.equals(state) && !IceProcessingState.FAILED.equals(state)) {
+			return;
+		}
+		PendingSetup pendingSetup = pendingSetups.get(callId);
+		if (pendingSetup != null) {
+			pendingSetup.state = state;
+			pendingSetup.completion.countDown();
+		}
+	}
+
+	/**
+	 * Places a call and blocks until the caller's ICE processing terminates.
+	 *
+	 * @return nanoseconds from generating the offer to a selected candidate pair.
+	 * @throws IllegalStateException if negotiation or connectivity checks failed.
+	 */
+	public long placeCall(String callId, long timeout, TimeUnit unit)
+			throws InterruptedException, TimeoutException {
+		PendingSetup pendingSetup = new PendingSetup();
+		pendingSetups.put(callId, pendingSetup);
+		try {
+			long startNanos = System.nanoTime();
+			SessionDescription offer = caller.generateOffer(callId, RequestMethod.INVITE, localAddress);
+			if (offer == null) {
+				throw new IllegalStateException(String.format("No offer in context of call %s.", callId));
+			}
+			SessionDescription answer = callee.generateAnswer(callId, RequestMethod.INVITE,
+					offer, localAddress);
+			if (answer == null) {
+				throw new IllegalStateException(String.format("No answer in context of call %s.", callId));
+			}
+			caller.receiveAnswerToAcceptedOffer(callId, answer);
+			if (!callee.performSessionSetup(callId, null) || !caller.performSessionSetup(callId, null)) {
+				throw new IllegalStateException(String.format("Session setup refused in context of call %s.",
+						callId));
+			}
+			if (!pendingSetup.completion.await(timeout, unit)) {
+				throw new TimeoutException(String.format("ICE processing of call %s did not finish in %d %s.",
+						callId, timeout, unit));
+			}
+			long elapsed = System.nanoTime() - startNanos;
+			if (!IceProcessingState.TERMINATED.equals(pendingSetup.state)) {
+				throw new IllegalStateException(String.format("ICE processing of call %s ended as %s.",
+						callId, pendingSetup.state));
+			}
+			logger.debug("{} set up call {} in {} us.", LoopbackIcePeerHarness.class.getSimpleName(),
+					callId, TimeUnit.NANOSECONDS.toMicros(elapsed));
+			return elapsed;
+		} finally {
+			pendingSetups.remove(callId);
+		}
+	}
+
+	public void hangUp(String callId) {
+		caller.performSessionTermination(callId);
+		callee.performSessionTermination(callId);
+	}
+
+	public void close() {
+		caller.removeIceStateListener(this);
+	}
+
+}
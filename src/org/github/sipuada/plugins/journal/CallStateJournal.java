@@ -0,0 +1,476 @@
+package org.github.sipuada.plugins.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.github.sipuada.plugins.state.CallState;
+import org.github.sipuada.plugins.state.CallStateListener;
+import org.github.sipuada.plugins.state.CallStateTransition;
+import org.github.sipuada.plugins.state.RecoverableSipuadaPlugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of call state transitions backed by a memory-mapped file.
+ * <p>
+ * Each transition is appended as a length-prefixed entry straight into the mapped
+ * region, so journaling a transition costs a copy into the page cache and no system
+ * call. A zero length prefix marks the end of the journal, which is what lets
+ * {@link #recover()} rebuild the live calls with a single sequential pass over the
+ * file; this is done when the journal is opened, so compaction never loses calls
+ * journaled before a restart.
+ * <p>
+ * Compaction rewrites the live calls into a new file on a background thread and only
+ * takes the append lock to copy over the entries appended meanwhile and swap files.
+ * When the mapped region fills up, appending grows the mapping and requests such a
+ * compaction instead of compacting inline.
+ */
+public class CallStateJournal implements CallStateListener {
+
+	private final Logger logger = LoggerFactory.getLogger(CallStateJournal.class);
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+	private static final int NO_VALUE = -1;
+	private static final int ENTRY_HEADER = 3;
+	private static final double COMPACTION_THRESHOLD = 0.75;
+
+	private final File file;
+	private final int initialCapacity;
+	private final Map<String, CallState> liveCalls = new ConcurrentHashMap<>();
+	private final Object compactionLock = new Object();
+	private final AtomicBoolean compactionRequested = new AtomicBoolean();
+	private final ScheduledExecutorService compactionScheduler;
+
+	private ScheduledFuture<?> periodicCompaction;
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer buffer;
+	private long appendedEntries;
+	private long compactions;
+	private boolean closed = false;
+
+	public CallStateJournal(File file) throws IOException {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	public CallStateJournal(File file, int initialCapacity) throws IOException {
+		this.file = file;
+		this.initialCapacity = initialCapacity;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+			Math.max(initialCapacity, (int) file.length()));
+		compactionScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("%s-compaction",
+					CallStateJournal.class.getSimpleName()));
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+		recover();
+	}
+
+	/**
+	 * Replays the journal from the start and returns the calls that were still live
+	 * when it was last written to.
+	 */
+	public synchronized Collection<CallState> recover() {
+		ensureOpen();
+		long startNanos = System.nanoTime();
+		Map<String, CallState> recovered = new LinkedHashMap<>();
+		buffer.position(0);
+		long entries = 0;
+		int entryStart = 0;
+		try {
+			int length;
+			while (buffer.remaining() >= 4 && (length = buffer.getInt(buffer.position())) > 0) {
+				entryStart = buffer.position();
+				if (length > buffer.remaining() - 4) {
+					logger.warn("{} found a truncated entry at offset {} of {}.",
+						CallStateJournal.class.getSimpleName(), buffer.position(), file);
+					break;
+				}
+				buffer.position(buffer.position() + 4);
+				int entryEnd = buffer.position() + length;
+				CallStateTransition transition = CallStateTransition.values()[buffer.get()];
+				int roleOrdinal = buffer.get();
+				boolean established = buffer.get() != 0;
+				String callId = readString();
+				String offer = readString();
+				String answer = readString();
+				if (buffer.position() != entryEnd) {
+					throw new IndexOutOfBoundsException(String.format("Entry does not match "
+						+ "its length of %d bytes.", length));
+				}
+				buffer.position(entryEnd);
+				entries++;
+				if (transition == CallStateTransition.TERMINATION) {
+					recovered.remove(callId);
+					continue;
+				}
+				CallState update = new CallState(callId, roleOrdinal == NO_VALUE ? null
+					: CallState.Role.values()[roleOrdinal], offer, answer, established);
+				CallState previous = recovered.get(callId);
+				recovered.put(callId, previous == null ? update
+					: previous.apply(transition, update));
+			}
+		} catch (BufferUnderflowException | IndexOutOfBoundsException corruptedEntry) {
+			logger.warn("{} stopped replaying {} at a corrupted entry at offset {}.",
+				CallStateJournal.class.getSimpleName(), file, entryStart, corruptedEntry);
+			buffer.position(entryStart);
+			buffer.putInt(entryStart, 0);
+		}
+		liveCalls.clear();
+		liveCalls.putAll(recovered);
+		appendedEntries = entries;
+		logger.info("{} replayed {} entries into {} live calls from {} in {} ms.",
+			CallStateJournal.class.getSimpleName(), entries, recovered.size(), file,
+			(System.nanoTime() - startNanos) / 1000000);
+		return Collections.unmodifiableCollection(recovered.values());
+	}
+
+	/**
+	 * Restores the live calls recovered when the journal was opened into the given
+	 * plugin and subscribes to its transitions from then on. Returns how many calls
+	 * the plugin managed to restore.
+	 */
+	public int restore(RecoverableSipuadaPlugin plugin) {
+		int restored = 0;
+		for (CallState state : new ArrayList<>(liveCalls.values())) {
+			if (plugin.restoreCallState(state)) {
+				restored++;
+			} else {
+				logger.warn("{} could not restore call {} into {}.",
+					CallStateJournal.class.getSimpleName(), state.getCallId(),
+					plugin.getClass().getSimpleName());
+			}
+		}
+		plugin.addCallStateListener(this);
+		return restored;
+	}
+
+	@Override
+	public void onCallStateTransition(CallStateTransition transition, CallState state) {
+		append(transition, state);
+	}
+
+	private synchronized void append(CallStateTransition transition, CallState state) {
+		ensureOpen();
+		if (transition == CallStateTransition.TERMINATION) {
+			liveCalls.remove(state.getCallId());
+		} else {
+			CallState previous = liveCalls.get(state.getCallId());
+			liveCalls.put(state.getCallId(), previous == null ? state
+				: previous.apply(transition, state));
+		}
+		byte[] callId = encode(state.getCallId());
+		byte[] offer = transition == CallStateTransition.TERMINATION ? null
+			: encode(state.getOffer());
+		byte[] answer = transition == CallStateTransition.TERMINATION ? null
+			: encode(state.getAnswer());
+		int length = ENTRY_HEADER + sizeOf(callId) + sizeOf(offer) + sizeOf(answer);
+		if (buffer.remaining() < length + 8) {
+			grow((int) Math.min(Integer.MAX_VALUE, (long) buffer.capacity() * 2 + length + 8));
+			requestCompaction();
+		}
+		writeEntry(buffer, transition, state, callId, offer, answer);
+		appendedEntries++;
+		if (buffer.position() > buffer.capacity() * COMPACTION_THRESHOLD
+				&& appendedEntries > 2L * liveCalls.size() + 1) {
+			requestCompaction();
+		}
+	}
+
+	/**
+	 * Rewrites the journal so it only holds one entry per live call, plus whatever
+	 * was appended while the rewrite was in progress. Appends are only blocked while
+	 * those entries are copied over and the files are swapped.
+	 */
+	public void compact() throws IOException {
+		synchronized (compactionLock) {
+			long startNanos = System.nanoTime();
+			List<CallState> snapshot;
+			int mark;
+			long entriesBefore;
+			synchronized (this) {
+				ensureOpen();
+				snapshot = new ArrayList<>(liveCalls.values());
+				mark = buffer.position();
+				entriesBefore = appendedEntries;
+			}
+			long required = 8;
+			for (CallState state : snapshot) {
+				required += 4 + entryLength(state);
+			}
+			if (required > Integer.MAX_VALUE / 2) {
+				throw new IOException(String.format("%s cannot fit %d live calls in a single "
+					+ "mapped region.", CallStateJournal.class.getSimpleName(), snapshot.size()));
+			}
+			int capacity = Math.max(initialCapacity, (int) required * 2);
+			File compacted = new File(file.getPath() + ".compacting");
+			Files.deleteIfExists(compacted.toPath());
+			RandomAccessFile compactedFile = new RandomAccessFile(compacted, "rw");
+			MappedByteBuffer compactedBuffer = null;
+			try {
+				compactedBuffer = compactedFile.getChannel()
+					.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+				for (CallState state : snapshot) {
+					writeEntry(compactedBuffer, CallStateTransition.OFFER, state,
+						encode(state.getCallId()), encode(state.getOffer()),
+						encode(state.getAnswer()));
+				}
+				compactedBuffer.force();
+				synchronized (this) {
+					if (closed) {
+						throw new IOException(String.format("%s was closed during compaction.",
+							CallStateJournal.class.getSimpleName()));
+					}
+					int tail = buffer.position() - mark;
+					if (compactedBuffer.remaining() < tail + 4) {
+						int position = compactedBuffer.position();
+						MappedByteBuffer undersized = compactedBuffer;
+						compactedBuffer = compactedFile.getChannel().map(FileChannel.MapMode
+							.READ_WRITE, 0, (int) Math.min(Integer.MAX_VALUE,
+							(long) capacity + tail + 4));
+						compactedBuffer.position(position);
+						unmap(undersized);
+					}
+					ByteBuffer tailEntries = buffer.duplicate();
+					tailEntries.limit(mark + tail).position(mark);
+					compactedBuffer.put(tailEntries);
+					compactedBuffer.putInt(compactedBuffer.position(), 0);
+					Files.move(compacted.toPath(), file.toPath(), StandardCopyOption
+						.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					MappedByteBuffer previousBuffer = buffer;
+					RandomAccessFile previousFile = randomAccessFile;
+					buffer = compactedBuffer;
+					randomAccessFile = compactedFile;
+					unmap(previousBuffer);
+					previousFile.close();
+					appendedEntries = snapshot.size() + appendedEntries - entriesBefore;
+					compactions++;
+					logger.info("{} compacted {} entries down to {} in {} ms.",
+						CallStateJournal.class.getSimpleName(), entriesBefore, appendedEntries,
+						(System.nanoTime() - startNanos) / 1000000);
+				}
+			} catch (IOException | RuntimeException compactionIssue) {
+				if (compactedBuffer != null) {
+					unmap(compactedBuffer);
+				}
+				compactedFile.close();
+				Files.deleteIfExists(compacted.toPath());
+				throw compactionIssue;
+			}
+		}
+	}
+
+	/**
+	 * Compacts the journal in the background every given period, skipping rounds in
+	 * which the journal holds less than twice as many entries as there are live calls.
+	 */
+	public synchronized void compactEvery(long period, TimeUnit unit) {
+		ensureOpen();
+		if (periodicCompaction != null) {
+			periodicCompaction.cancel(false);
+		}
+		periodicCompaction = compactionScheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (CallStateJournal.this) {
+					if (closed || appendedEntries < 2L * liveCalls.size() + 1) {
+						return;
+					}
+				}
+				runCompaction();
+			}
+
+		}, period, period, unit);
+	}
+
+	private void requestCompaction() {
+		if (!compactionRequested.compareAndSet(false, true)) {
+			return;
+		}
+		compactionScheduler.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					runCompaction();
+				} finally {
+					compactionRequested.set(false);
+				}
+			}
+
+		});
+	}
+
+	private void runCompaction() {
+		try {
+			compact();
+		} catch (IOException ioException) {
+			logger.error("{} could not compact {}.",
+				CallStateJournal.class.getSimpleName(), file, ioException);
+		}
+	}
+
+	private void grow(int capacity) {
+		try {
+			int position = buffer.position();
+			MappedByteBuffer previous = buffer;
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			buffer.position(position);
+			unmap(previous);
+			logger.info("{} grew {} to {} bytes.", CallStateJournal.class.getSimpleName(),
+				file, capacity);
+		} catch (IOException ioException) {
+			throw new IllegalStateException(String.format("%s could not make room in %s.",
+				CallStateJournal.class.getSimpleName(), file), ioException);
+		}
+	}
+
+	public synchronized void force() {
+		ensureOpen();
+		buffer.force();
+	}
+
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		compactionScheduler.shutdownNow();
+		buffer.force();
+		unmap(buffer);
+		randomAccessFile.close();
+	}
+
+	public int getLiveCalls() {
+		return liveCalls.size();
+	}
+
+	public synchronized long getAppendedEntries() {
+		return appendedEntries;
+	}
+
+	public synchronized long getCompactions() {
+		return compactions;
+	}
+
+	public synchronized int getSize() {
+		ensureOpen();
+		return buffer.position();
+	}
+
+	private void ensureOpen() {
+		if (closed) {
+			throw new IllegalStateException(String.format("%s for %s is closed.",
+				CallStateJournal.class.getSimpleName(), file));
+		}
+	}
+
+	/**
+	 * Releases a mapping right away instead of leaving it to the garbage collector,
+	 * so that replaced mappings do not pile up. The buffer must not be used again.
+	 */
+	private void unmap(MappedByteBuffer mapping) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+				.invoke(theUnsafe.get(null), mapping);
+			return;
+		} catch (ReflectiveOperationException | RuntimeException noInvokeCleaner) {
+			// Before Java 9 the mapping exposes its cleaner directly.
+		}
+		try {
+			Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(mapping);
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (ReflectiveOperationException | RuntimeException noCleaner) {
+			logger.debug("{} left a mapping of {} to the garbage collector.",
+				CallStateJournal.class.getSimpleName(), file, noCleaner);
+		}
+	}
+
+	private String readString() {
+		int length = buffer.getInt();
+		if (length == NO_VALUE) {
+			return null;
+		}
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IndexOutOfBoundsException(String.format("Invalid string length %d "
+				+ "at offset %d.", length, buffer.position() - 4));
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeEntry(ByteBuffer target, CallStateTransition transition,
+			CallState state, byte[] callId, byte[] offer, byte[] answer) {
+		int start = target.position();
+		target.position(start + 4);
+		target.put((byte) transition.ordinal());
+		target.put((byte) (state.getRole() == null ? NO_VALUE : state.getRole().ordinal()));
+		target.put((byte) (state.isEstablished() ? 1 : 0));
+		writeBytes(target, callId);
+		writeBytes(target, offer);
+		writeBytes(target, answer);
+		int end = target.position();
+		target.putInt(end, 0);
+		target.putInt(start, end - start - 4);
+	}
+
+	private static void writeBytes(ByteBuffer target, byte[] bytes) {
+		if (bytes == null) {
+			target.putInt(NO_VALUE);
+		} else {
+			target.putInt(bytes.length);
+			target.put(bytes);
+		}
+	}
+
+	private static int entryLength(CallState state) {
+		return ENTRY_HEADER + sizeOf(encode(state.getCallId()))
+			+ sizeOf(encode(state.getOffer())) + sizeOf(encode(state.getAnswer()));
+	}
+
+	private static byte[] encode(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int sizeOf(byte[] bytes) {
+		return 4 + (bytes == null ? 0 : bytes.length);
+	}
+
+}
@@ -0,0 +1,235 @@
+package org.github.sipuada.plugins.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.github.sipuada.Constants.RequestMethod;
+import org.github.sipuada.plugins.SipuadaPlugin;
+import org.github.sipuada.plugins.load.CallLoadGenerator.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.NOPLoggerFactory;
+
+import android.javax.sdp.SessionDescription;
+
+/**
+ * Measures the bytes a full call lifecycle allocates on the calling thread, per
+ * phase, and checks them against the budgets in allocation-budgets.properties.
+ * <p>
+ * This is a manual tool rather than part of the build: its figures only mean
+ * something with the slf4j-nop binding and the real SDP implementation on the
+ * classpath, so it is run by hand, and its exit status tells whether every
+ * plugin stayed within budget.
+ */
+public class CallAllocationProfiler {
+
+	private final Logger logger = LoggerFactory.getLogger(CallAllocationProfiler.class);
+
+	public static class Report {
+
+		private final long calls;
+		private final long elapsedNanos;
+		private final Map<Phase, Long> bytesByPhase;
+
+		Report(long calls, long elapsedNanos, Map<Phase, Long> bytesByPhase) {
+			this.calls = calls;
+			this.elapsedNanos = elapsedNanos;
+			this.bytesByPhase = bytesByPhase;
+		}
+
+		public long getCalls() {
+			return calls;
+		}
+
+		public long getNanosPerCall() {
+			return calls == 0 ? 0 : elapsedNanos / calls;
+		}
+
+		public long getBytesPerCall(Phase phase) {
+			return calls == 0 ? 0 : bytesByPhase.get(phase) / calls;
+		}
+
+		public long getBytesPerCall() {
+			long total = 0;
+			for (Long bytes : bytesByPhase.values()) {
+				total += bytes;
+			}
+			return calls == 0 ? 0 : total / calls;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder(String.format(Locale.US,
+				"%d bytes allocated and %d ns spent per call over %d calls",
+				getBytesPerCall(), getNanosPerCall(), calls));
+			for (Phase phase : Phase.values()) {
+				report.append(String.format(Locale.US, "\n  %-20s %10d bytes/call",
+					phase, getBytesPerCall(phase)));
+			}
+			return report.toString();
+		}
+
+	}
+
+	private final com.sun.management.ThreadMXBean threads;
+	private final SipuadaPlugin caller;
+	private final SipuadaPlugin callee;
+	private final String localAddress;
+
+	public CallAllocationProfiler(SipuadaPlugin caller, SipuadaPlugin callee,
+			String localAddress) {
+		this.threads = (com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			throw new UnsupportedOperationException
+				("Per-thread allocation counters are not supported by this JVM.");
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		this.caller = caller;
+		this.callee = callee;
+		this.localAddress = localAddress;
+	}
+
+	public Report profile(int warmupCalls, int measuredCalls) {
+		Map<Phase, Long> discarded = new EnumMap<>(Phase.class);
+		for (int call = 0; call < warmupCalls; call++) {
+			placeCall(String.format(Locale.US, "warmup-%d@alloc", call), discarded);
+		}
+		Map<Phase, Long> bytesByPhase = new EnumMap<>(Phase.class);
+		for (Phase phase : Phase.values()) {
+			bytesByPhase.put(phase, 0L);
+		}
+		long start = System.nanoTime();
+		for (int call = 0; call < measuredCalls; call++) {
+			placeCall(String.format(Locale.US, "measured-%d@alloc", call), bytesByPhase);
+		}
+		Report report = new Report(measuredCalls, System.nanoTime() - start,
+			bytesByPhase);
+		logger.info("{} finished: {}", CallAllocationProfiler.class.getSimpleName(),
+			report);
+		return report;
+	}
+
+	private void placeCall(String callId, Map<Phase, Long> bytesByPhase) {
+		long mark = allocatedBytes();
+		SessionDescription offer = caller.generateOffer(callId,
+			RequestMethod.INVITE, localAddress);
+		mark = account(bytesByPhase, Phase.OFFER, mark);
+		SessionDescription answer = callee.generateAnswer(callId,
+			RequestMethod.INVITE, offer, localAddress);
+		mark = account(bytesByPhase, Phase.ANSWER, mark);
+		caller.receiveAnswerToAcceptedOffer(callId, answer);
+		mark = account(bytesByPhase, Phase.ANSWER_RECEIVED, mark);
+		caller.performSessionSetup(callId, null);
+		mark = account(bytesByPhase, Phase.CALLER_SETUP, mark);
+		callee.performSessionSetup(callId, null);
+		mark = account(bytesByPhase, Phase.CALLEE_SETUP, mark);
+		caller.performSessionTermination(callId);
+		mark = account(bytesByPhase, Phase.CALLER_TERMINATION, mark);
+		callee.performSessionTermination(callId);
+		account(bytesByPhase, Phase.CALLEE_TERMINATION, mark);
+	}
+
+	private long account(Map<Phase, Long> bytesByPhase, Phase phase, long mark) {
+		long now = allocatedBytes();
+		Long bytes = bytesByPhase.get(phase);
+		bytesByPhase.put(phase, (bytes == null ? 0 : bytes) + now - mark);
+		return allocatedBytes();
+	}
+
+	private long allocatedBytes() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Plugins log whole SDPs at INFO, so measurements are only comparable when
+	 * logging is bound to slf4j's no-operation factory.
+	 */
+	public static boolean isLoggingPinned() {
+		return LoggerFactory.getILoggerFactory() instanceof NOPLoggerFactory;
+	}
+
+	public static Properties loadBudgets() throws IOException {
+		Properties budgets = new Properties();
+		try (InputStream input = CallAllocationProfiler.class
+				.getResourceAsStream("allocation-budgets.properties")) {
+			if (input == null) {
+				throw new IOException("Allocation budgets could not be found.");
+			}
+			budgets.load(input);
+		}
+		return budgets;
+	}
+
+	/**
+	 * @return the budget of the given plugin, or -1 if it was never calibrated.
+	 */
+	public static long getBudget(Properties budgets, String pluginName) {
+		String budget = budgets.getProperty(pluginName + ".bytesPerCall");
+		return budget == null ? -1 : Long.parseLong(budget.trim());
+	}
+
+	public static double getHeadroom(Properties budgets) {
+		return Double.parseDouble(budgets.getProperty("headroom", "0.25").trim());
+	}
+
+	/**
+	 * Profiles the given plugins and either checks them against their budgets or,
+	 * in calibrate mode, prints the measured figures and budgets to be recorded
+	 * in allocation-budgets.properties.
+	 */
+	public static void main(String[] args) throws IOException {
+		int warmupCalls = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int measuredCalls = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		String[] pluginNames = args.length > 0 ? args[0].split(",")
+			: new String[] { "nop-baseline", "nop", "audio" };
+		boolean calibrate = args.length > 3 && args[3].equals("calibrate");
+		if (!isLoggingPinned()) {
+			System.err.println(String.format(Locale.US, "Allocation figures are only "
+				+ "meaningful with the slf4j-nop binding, but %s is bound.",
+				LoggerFactory.getILoggerFactory().getClass().getName()));
+			System.exit(2);
+		}
+		Properties budgets = loadBudgets();
+		double headroom = getHeadroom(budgets);
+		boolean withinBudget = true;
+		for (String pluginName : pluginNames) {
+			SipuadaPlugin caller = CallLoadGenerator.createPlugin(pluginName, "caller");
+			SipuadaPlugin callee = CallLoadGenerator.createPlugin(pluginName, "callee");
+			Report report;
+			try {
+				report = new CallAllocationProfiler(caller, callee, "127.0.0.1")
+					.profile(warmupCalls, measuredCalls);
+			} finally {
+				CallLoadGenerator.closePlugin(caller);
+				CallLoadGenerator.closePlugin(callee);
+			}
+			if (calibrate) {
+				System.out.println(String.format(Locale.US, "%s.measuredBytesPerCall=%d\n"
+					+ "%s.bytesPerCall=%d", pluginName, report.getBytesPerCall(), pluginName,
+					(long) Math.ceil(report.getBytesPerCall() * (1 + headroom))));
+				continue;
+			}
+			long budget = getBudget(budgets, pluginName);
+			if (budget < 0) {
+				withinBudget = false;
+				System.out.println(String.format(Locale.US, "[UNCALIBRATED] %s: %s\n  "
+					+ "no budget recorded, run in calibrate mode first", pluginName, report));
+				continue;
+			}
+			boolean passed = report.getBytesPerCall() <= budget;
+			withinBudget &= passed;
+			System.out.println(String.format(Locale.US, "[%s] %s: %s\n  budget %d "
+				+ "bytes/call", passed ? "PASS" : "FAIL", pluginName, report, budget));
+		}
+		if (!withinBudget) {
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,370 @@
+package org.github.sipuada.plugins.load;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.github.sipuada.Constants.RequestMethod;
+import org.github.sipuada.SipUserAgent;
+import org.github.sipuada.plugins.SipuadaPlugin;
+import org.github.sipuada.plugins.audio.AudioSimulationSipuadaPlugin;
+import org.github.sipuada.plugins.ice4j.Ice4JSipuadaPlugin;
+import org.github.sipuada.plugins.metrics.LatencyHistogram;
+import org.github.sipuada.plugins.nop.NoOperationSipuadaPlugin;
+import org.ice4j.ice.IceProcessingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.javax.sdp.SessionDescription;
+
+/**
+ * Places calls between two plugins and records how long each call takes to be set
+ * up. When the caller is an {@link Ice4JSipuadaPlugin}, a call only counts as set up
+ * once the caller's ICE processing terminates, so its figures include connectivity
+ * checks and not just signalling.
+ */
+public class CallLoadGenerator {
+
+	private final Logger logger = LoggerFactory.getLogger(CallLoadGenerator.class);
+
+	public enum Phase {
+		OFFER,
+		ANSWER,
+		ANSWER_RECEIVED,
+		CALLER_SETUP,
+		CALLEE_SETUP,
+		CALLER_TERMINATION,
+		CALLEE_TERMINATION
+	}
+
+	public static class Report {
+
+		private final long attemptedCalls;
+		private final long completedCalls;
+		private final long elapsedNanos;
+		private final LatencyHistogram setupLatency;
+		private final Map<Phase, Long> errors;
+
+		Report(long attemptedCalls, long completedCalls, long elapsedNanos,
+				LatencyHistogram setupLatency, Map<Phase, Long> errors) {
+			this.attemptedCalls = attemptedCalls;
+			this.completedCalls = completedCalls;
+			this.elapsedNanos = elapsedNanos;
+			this.setupLatency = setupLatency;
+			this.errors = errors;
+		}
+
+		public long getAttemptedCalls() {
+			return attemptedCalls;
+		}
+
+		public long getCompletedCalls() {
+			return completedCalls;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public double getAchievedCallsPerSecond() {
+			return elapsedNanos == 0 ? 0 : completedCalls
+				/ (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+		}
+
+		public LatencyHistogram getSetupLatency() {
+			return setupLatency;
+		}
+
+		public Map<Phase, Long> getErrors() {
+			return errors;
+		}
+
+		public long getTotalErrors() {
+			long total = 0;
+			for (Long count : errors.values()) {
+				total += count;
+			}
+			return total;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "attempted=%d completed=%d errors=%d %s "
+				+ "elapsed=%.3fs achieved=%.1f calls/s\nsetup latency: %s",
+				attemptedCalls, completedCalls, getTotalErrors(), errors,
+				elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1),
+				getAchievedCallsPerSecond(), setupLatency);
+		}
+
+	}
+
+	private final SipuadaPlugin caller;
+	private final SipuadaPlugin callee;
+	private final String callerAddress;
+	private final String calleeAddress;
+	private final SipUserAgent userAgent;
+
+	private final LatencyHistogram setupLatency = new LatencyHistogram();
+	private final Map<Phase, AtomicLong> errors = new EnumMap<>(Phase.class);
+	private final AtomicLong claimedCalls = new AtomicLong();
+	private final AtomicLong completedCalls = new AtomicLong();
+	private final AtomicLong nextSlotNanos = new AtomicLong();
+
+	class PendingIceSetup {
+		final CountDownLatch completion = new CountDownLatch(1);
+		volatile IceProcessingState state;
+	}
+	private final Map<String, PendingIceSetup> pendingIceSetups = new ConcurrentHashMap<>();
+	private final Ice4JSipuadaPlugin.IceStateListener iceStateListener
+			= new Ice4JSipuadaPlugin.IceStateListener() {
+
+		@Override
+		public void onIceStateChanged(String callId, IceProcessingState state) {
+			if (!IceProcessingState.TERMINATED.equals(state)
+					&& !IceProcessingState.FAILED.equals(state)) {
+				return;
+			}
+			PendingIceSetup pendingIceSetup = pendingIceSetups.get(callId);
+			if (pendingIceSetup != null) {
+				pendingIceSetup.state = state;
+				pendingIceSetup.completion.countDown();
+			}
+		}
+
+	};
+	private volatile long iceSetupTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+
+	public CallLoadGenerator(SipuadaPlugin caller, SipuadaPlugin callee,
+			String callerAddress, String calleeAddress, SipUserAgent userAgent) {
+		this.caller = caller;
+		this.callee = callee;
+		this.callerAddress = callerAddress;
+		this.calleeAddress = calleeAddress;
+		this.userAgent = userAgent;
+		for (Phase phase : Phase.values()) {
+			errors.put(phase, new AtomicLong());
+		}
+	}
+
+	public void setIceSetupTimeout(long timeout, TimeUnit unit) {
+		iceSetupTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	public Report run(final long totalCalls, int concurrentCalls,
+			double callsPerSecond) throws InterruptedException {
+		if (caller instanceof Ice4JSipuadaPlugin) {
+			((Ice4JSipuadaPlugin) caller).addIceStateListener(iceStateListener);
+		}
+		try {
+			return placeCalls(totalCalls, concurrentCalls, callsPerSecond);
+		} finally {
+			if (caller instanceof Ice4JSipuadaPlugin) {
+				((Ice4JSipuadaPlugin) caller).removeIceStateListener(iceStateListener);
+			}
+		}
+	}
+
+	private Report placeCalls(final long totalCalls, int concurrentCalls,
+			double callsPerSecond) throws InterruptedException {
+		final long intervalNanos = callsPerSecond <= 0 ? 0
+			: (long) (TimeUnit.SECONDS.toNanos(1) / callsPerSecond);
+		final String prefix = Long.toHexString(System.nanoTime());
+		setupLatency.reset();
+		for (AtomicLong count : errors.values()) {
+			count.set(0);
+		}
+		claimedCalls.set(0);
+		completedCalls.set(0);
+		long start = System.nanoTime();
+		nextSlotNanos.set(start);
+		logger.info("{} placing {} calls with {} concurrent at a target of {} "
+			+ "calls/s...", CallLoadGenerator.class.getSimpleName(), totalCalls,
+			concurrentCalls, callsPerSecond);
+		ExecutorService workers = Executors.newFixedThreadPool(concurrentCalls);
+		for (int worker = 0; worker < concurrentCalls; worker++) {
+			workers.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					long index;
+					while ((index = claimedCalls.getAndIncrement()) < totalCalls) {
+						long slot = nextSlotNanos.getAndAdd(intervalNanos);
+						long wait = slot - System.nanoTime();
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+						}
+						placeCall(String.format(Locale.US, "%s-%d@load", prefix, index),
+							intervalNanos == 0 ? System.nanoTime() : slot);
+					}
+				}
+
+			});
+		}
+		workers.shutdown();
+		while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+			logger.debug("{} has completed {} calls so far...",
+				CallLoadGenerator.class.getSimpleName(), completedCalls.get());
+		}
+		long elapsed = System.nanoTime() - start;
+		Map<Phase, Long> errorCounts = new EnumMap<>(Phase.class);
+		for (Phase phase : Phase.values()) {
+			errorCounts.put(phase, errors.get(phase).get());
+		}
+		Report report = new Report(Math.min(totalCalls, claimedCalls.get()),
+			completedCalls.get(), elapsed, setupLatency, errorCounts);
+		logger.info("{} finished: {}", CallLoadGenerator.class.getSimpleName(), report);
+		return report;
+	}
+
+	/**
+	 * Places a call timing its setup from the given start, which is the slot it
+	 * was scheduled for when pacing, so that any queueing delay behind slower
+	 * calls is part of the recorded latency.
+	 */
+	private void placeCall(String callId, long start) {
+		Phase phase = Phase.OFFER;
+		PendingIceSetup pendingIceSetup = null;
+		if (caller instanceof Ice4JSipuadaPlugin) {
+			pendingIceSetup = new PendingIceSetup();
+			pendingIceSetups.put(callId, pendingIceSetup);
+		}
+		try {
+			SessionDescription offer = caller.generateOffer(callId,
+				RequestMethod.INVITE, callerAddress);
+			if (offer == null) {
+				errors.get(phase).incrementAndGet();
+				return;
+			}
+			phase = Phase.ANSWER;
+			SessionDescription answer = callee.generateAnswer(callId,
+				RequestMethod.INVITE, offer, calleeAddress);
+			if (answer == null) {
+				errors.get(phase).incrementAndGet();
+				terminate(caller, callId, Phase.CALLER_TERMINATION);
+				return;
+			}
+			phase = Phase.ANSWER_RECEIVED;
+			caller.receiveAnswerToAcceptedOffer(callId, answer);
+			phase = Phase.CALLER_SETUP;
+			boolean callerReady = caller.performSessionSetup(callId, userAgent);
+			if (!callerReady) {
+				errors.get(phase).incrementAndGet();
+			}
+			phase = Phase.CALLEE_SETUP;
+			boolean calleeReady = callee.performSessionSetup(callId, userAgent);
+			if (!calleeReady) {
+				errors.get(phase).incrementAndGet();
+			}
+			if (callerReady && calleeReady && pendingIceSetup != null) {
+				phase = Phase.CALLER_SETUP;
+				callerReady = awaitIceSetup(pendingIceSetup);
+				if (!callerReady) {
+					errors.get(phase).incrementAndGet();
+				}
+			}
+			if (callerReady && calleeReady) {
+				setupLatency.record(System.nanoTime() - start);
+			}
+			boolean callerDone = terminate(caller, callId, Phase.CALLER_TERMINATION);
+			boolean calleeDone = terminate(callee, callId, Phase.CALLEE_TERMINATION);
+			if (callerReady && calleeReady && callerDone && calleeDone) {
+				completedCalls.incrementAndGet();
+			}
+		} catch (Throwable anyIssue) {
+			errors.get(phase).incrementAndGet();
+			logger.debug("{} could not place call {} during {} phase.",
+				CallLoadGenerator.class.getSimpleName(), callId, phase, anyIssue);
+		} finally {
+			if (pendingIceSetup != null) {
+				pendingIceSetups.remove(callId);
+			}
+		}
+	}
+
+	private boolean awaitIceSetup(PendingIceSetup pendingIceSetup) {
+		try {
+			return pendingIceSetup.completion.await(iceSetupTimeoutNanos, TimeUnit.NANOSECONDS)
+				&& IceProcessingState.TERMINATED.equals(pendingIceSetup.state);
+		} catch (InterruptedException interruption) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private boolean terminate(SipuadaPlugin plugin, String callId, Phase phase) {
+		try {
+			boolean terminated = plugin.performSessionTermination(callId);
+			if (!terminated) {
+				errors.get(phase).incrementAndGet();
+			}
+			return terminated;
+		} catch (Throwable anyIssue) {
+			errors.get(phase).incrementAndGet();
+			logger.debug("{} could not terminate call {}.",
+				CallLoadGenerator.class.getSimpleName(), callId, anyIssue);
+			return false;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String pluginName = args.length > 0 ? args[0] : "nop";
+		long totalCalls = args.length > 1 ? Long.parseLong(args[1]) : 10000;
+		int concurrentCalls = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		double callsPerSecond = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+		String localAddress = args.length > 4 ? args[4] : "127.0.0.1";
+		SipuadaPlugin caller = createPlugin(pluginName, "caller");
+		SipuadaPlugin callee = createPlugin(pluginName, "callee");
+		try {
+			Report report = new CallLoadGenerator(caller, callee, localAddress,
+				localAddress, null).run(totalCalls, concurrentCalls, callsPerSecond);
+			System.out.println(report);
+		} finally {
+			closePlugin(caller);
+			closePlugin(callee);
+		}
+	}
+
+	static void closePlugin(SipuadaPlugin plugin) {
+		if (plugin instanceof Closeable) {
+			try {
+				((Closeable) plugin).close();
+			} catch (IOException anyIssue) {
+				LoggerFactory.getLogger(CallLoadGenerator.class).error("{} could not "
+					+ "close plugin {}.", CallLoadGenerator.class.getSimpleName(),
+					plugin.getClass().getSimpleName(), anyIssue);
+			}
+		}
+	}
+
+	static SipuadaPlugin createPlugin(String pluginName, String identifier) {
+		switch (pluginName) {
+			case "audio":
+				return new AudioSimulationSipuadaPlugin(identifier);
+			case "audio-consolidated":
+				return new AudioSimulationSipuadaPlugin(identifier, true);
+			case "audio-stateless":
+				return new AudioSimulationSipuadaPlugin(identifier, true, true);
+			case "ice4j":
+				return new Ice4JSipuadaPlugin();
+			case "ice4j-virtual":
+				return new Ice4JSipuadaPlugin(true);
+			case "nop":
+				return new NoOperationSipuadaPlugin();
+			case "nop-baseline":
+				return new NoOperationSipuadaPlugin(true);
+			default:
+				throw new IllegalArgumentException(String.format("Unknown plugin %s.",
+					pluginName));
+		}
+	}
+
+}
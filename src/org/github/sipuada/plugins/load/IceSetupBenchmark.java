@@ -0,0 +1,140 @@
+package org.github.sipuada.plugins.load;
+
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.sipuada.plugins.ice4j.Ice4JSipuadaPlugin;
+import org.github.sipuada.plugins.ice4j.LocalStunResponder;
+import org.github.sipuada.plugins.ice4j.LoopbackIcePeerHarness;
+import org.github.sipuada.plugins.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how long ICE takes to select a candidate pair between two in-process
+ * plugins, from the offer until the caller's agent terminates processing. The
+ * STUN server can be a {@link LocalStunResponder} started for the run, none at
+ * all (host candidates only) or any reachable host:port.
+ */
+public class IceSetupBenchmark {
+
+	private final Logger logger = LoggerFactory.getLogger(IceSetupBenchmark.class);
+
+	private static final long SETUP_TIMEOUT_SECONDS = 30;
+
+	private final LoopbackIcePeerHarness harness;
+
+	private final LatencyHistogram setupLatency = new LatencyHistogram();
+	private final AtomicLong claimedCalls = new AtomicLong();
+	private final AtomicLong completedCalls = new AtomicLong();
+	private final AtomicLong failedCalls = new AtomicLong();
+
+	public IceSetupBenchmark(LoopbackIcePeerHarness harness) {
+		this.harness = harness;
+	}
+
+	public LatencyHistogram run(final long totalCalls, int concurrentCalls) throws InterruptedException {
+		final String prefix = Long.toHexString(System.nanoTime());
+		setupLatency.reset();
+		claimedCalls.set(0);
+		completedCalls.set(0);
+		failedCalls.set(0);
+		long start = System.nanoTime();
+		logger.info("{} setting up {} calls with {} concurrent...",
+			IceSetupBenchmark.class.getSimpleName(), totalCalls, concurrentCalls);
+		ExecutorService workers = Executors.newFixedThreadPool(concurrentCalls);
+		for (int worker = 0; worker < concurrentCalls; worker++) {
+			workers.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					long index;
+					while ((index = claimedCalls.getAndIncrement()) < totalCalls) {
+						setUpCall(String.format(Locale.US, "%s-%d@ice", prefix, index));
+					}
+				}
+
+			});
+		}
+		workers.shutdown();
+		while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+			logger.debug("{} has set up {} calls so far...",
+				IceSetupBenchmark.class.getSimpleName(), completedCalls.get());
+		}
+		logger.info("{} finished in {} ms.", IceSetupBenchmark.class.getSimpleName(),
+			TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return setupLatency;
+	}
+
+	private void setUpCall(String callId) {
+		try {
+			setupLatency.record(harness.placeCall(callId, SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+			completedCalls.incrementAndGet();
+		} catch (InterruptedException interruption) {
+			failedCalls.incrementAndGet();
+			Thread.currentThread().interrupt();
+		} catch (Throwable anyIssue) {
+			failedCalls.incrementAndGet();
+			logger.debug("{} could not set up call {}.",
+				IceSetupBenchmark.class.getSimpleName(), callId, anyIssue);
+		} finally {
+			try {
+				harness.hangUp(callId);
+			} catch (Throwable anyIssue) {
+				logger.debug("{} could not hang up call {}.",
+					IceSetupBenchmark.class.getSimpleName(), callId, anyIssue);
+			}
+		}
+	}
+
+	public long getCompletedCalls() {
+		return completedCalls.get();
+	}
+
+	public long getFailedCalls() {
+		return failedCalls.get();
+	}
+
+	public static void main(String[] args) throws InterruptedException, SocketException {
+		long totalCalls = args.length > 0 ? Long.parseLong(args[0]) : 100;
+		int concurrentCalls = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		String stunServer = args.length > 2 ? args[2] : "local";
+		String localAddress = args.length > 3 ? args[3] : "127.0.0.1";
+		LocalStunResponder responder = null;
+		String stunServerHost = null;
+		int stunServerPort = 0;
+		if (stunServer.equals("local")) {
+			responder = new LocalStunResponder();
+			stunServerHost = responder.getAddress().getHostAddress();
+			stunServerPort = responder.getPort();
+		} else if (!stunServer.equals("none")) {
+			int separator = stunServer.lastIndexOf(':');
+			stunServerHost = separator < 0 ? stunServer : stunServer.substring(0, separator);
+			stunServerPort = separator < 0 ? Ice4JSipuadaPlugin.DEFAULT_STUN_SERVER_PORT
+				: Integer.parseInt(stunServer.substring(separator + 1));
+		}
+		Ice4JSipuadaPlugin caller = new Ice4JSipuadaPlugin(stunServerHost, stunServerPort);
+		Ice4JSipuadaPlugin callee = new Ice4JSipuadaPlugin(stunServerHost, stunServerPort);
+		LoopbackIcePeerHarness harness = new LoopbackIcePeerHarness(caller, callee, localAddress);
+		try {
+			IceSetupBenchmark benchmark = new IceSetupBenchmark(harness);
+			LatencyHistogram latency = benchmark.run(totalCalls, concurrentCalls);
+			System.out.println(String.format(Locale.US, "stun=%s completed=%d failed=%d%s\nsetup latency: %s",
+				stunServer, benchmark.getCompletedCalls(), benchmark.getFailedCalls(),
+				responder == null ? "" : String.format(Locale.US, " stunRequests=%d",
+				responder.getAnsweredRequests()), latency));
+		} finally {
+			harness.close();
+			caller.close();
+			callee.close();
+			if (responder != null) {
+				responder.close();
+			}
+		}
+	}
+
+}
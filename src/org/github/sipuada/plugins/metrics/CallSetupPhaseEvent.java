@@ -0,0 +1,38 @@
+package org.github.sipuada.plugins.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.github.sipuada.plugins.CallSetupPhase")
+@Label("Call Setup Phase")
+@Category({"Sipuada", "Plugins"})
+@Description("Time spent by a sipuada plugin in one phase of a call setup.")
+@StackTrace(false)
+public class CallSetupPhaseEvent extends Event {
+
+	@Label("Plugin")
+	String plugin;
+
+	@Label("Call ID")
+	String callId;
+
+	@Label("Phase")
+	String phase;
+
+	public static CallSetupPhaseEvent start(String plugin, String callId,
+			String phase) {
+		CallSetupPhaseEvent event = new CallSetupPhaseEvent();
+		if (event.isEnabled()) {
+			event.plugin = plugin;
+			event.callId = callId;
+			event.phase = phase;
+			event.begin();
+		}
+		return event;
+	}
+
+}
@@ -0,0 +1,104 @@
+package org.github.sipuada.plugins.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(indexOf(nanos));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long currentMax = maxNanos.get();
+		while (nanos > currentMax && !maxNanos.compareAndSet(currentMax, nanos)) {
+			currentMax = maxNanos.get();
+		}
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public long getMeanNanos() {
+		long count = totalCount.get();
+		return count == 0 ? 0 : totalNanos.get() / count;
+	}
+
+	public long getNanosAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long threshold = (long) Math.ceil(count * Math.min(100.0, Math.max(0.0,
+			percentile)) / 100.0);
+		long seen = 0;
+		for (int index = 0; index < BUCKETS; index++) {
+			seen += counts.get(index);
+			if (seen >= Math.max(1, threshold)) {
+				return Math.min(upperBoundOf(index), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	public void reset() {
+		for (int index = 0; index < BUCKETS; index++) {
+			counts.set(index, 0);
+		}
+		totalCount.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	private static int indexOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS))
+			& (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long lowerBound = (1L << magnitude) | (subBucket << (magnitude - SUB_BUCKET_BITS));
+		return lowerBound + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "count=%d mean=%.3fms p50=%.3fms "
+			+ "p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", getCount(),
+			toMillis(getMeanNanos()), toMillis(getNanosAtPercentile(50)),
+			toMillis(getNanosAtPercentile(90)), toMillis(getNanosAtPercentile(99)),
+			toMillis(getNanosAtPercentile(99.9)), toMillis(getMaxNanos()));
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
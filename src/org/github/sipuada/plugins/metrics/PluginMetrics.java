@@ -0,0 +1,199 @@
+package org.github.sipuada.plugins.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PluginMetrics implements PluginMetricsMXBean {
+
+	private final Logger logger = LoggerFactory.getLogger(PluginMetrics.class);
+
+	public enum Method {
+		GENERATE_OFFER,
+		RECEIVE_ANSWER,
+		GENERATE_ANSWER,
+		SESSION_SETUP,
+		SESSION_TERMINATION
+	}
+
+	public interface Gauge {
+
+		long read();
+
+	}
+
+	private final String pluginName;
+	private final String instanceName;
+	private final Map<Method, LatencyHistogram> latencies = new EnumMap<>(Method.class);
+	private final Map<Method, AtomicLong> failures = new EnumMap<>(Method.class);
+	private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+	private ObjectName objectName;
+
+	public PluginMetrics(String pluginName, String instanceName) {
+		this.pluginName = pluginName;
+		this.instanceName = instanceName;
+		for (Method method : Method.values()) {
+			latencies.put(method, new LatencyHistogram());
+			failures.put(method, new AtomicLong());
+		}
+	}
+
+	public void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public <T> T completed(Method method, long startNanos, T result) {
+		latencies.get(method).record(System.nanoTime() - startNanos);
+		if (result == null) {
+			failures.get(method).incrementAndGet();
+		}
+		return result;
+	}
+
+	public boolean completed(Method method, long startNanos, boolean result) {
+		latencies.get(method).record(System.nanoTime() - startNanos);
+		if (!result) {
+			failures.get(method).incrementAndGet();
+		}
+		return result;
+	}
+
+	public void completed(Method method, long startNanos) {
+		latencies.get(method).record(System.nanoTime() - startNanos);
+	}
+
+	public void failed(Method method) {
+		failures.get(method).incrementAndGet();
+	}
+
+	public LatencyHistogram getLatency(Method method) {
+		return latencies.get(method);
+	}
+
+	public long getFailures(Method method) {
+		return failures.get(method).get();
+	}
+
+	public synchronized PluginMetrics register() {
+		if (objectName != null) {
+			return this;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(String.format("%s:type=%s,plugin=%s,"
+				+ "instance=%s", PluginMetrics.class.getPackage().getName(),
+				PluginMetrics.class.getSimpleName(), ObjectName.quote(pluginName),
+				ObjectName.quote(instanceName)));
+			server.registerMBean(this, name);
+			objectName = name;
+		} catch (Throwable anyIssue) {
+			logger.warn("{} could not be published over JMX for {} ({}).",
+				PluginMetrics.class.getSimpleName(), pluginName, instanceName, anyIssue);
+		}
+		return this;
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Throwable anyIssue) {
+			logger.warn("{} could not be unpublished from JMX for {} ({}).",
+				PluginMetrics.class.getSimpleName(), pluginName, instanceName, anyIssue);
+		}
+		objectName = null;
+	}
+
+	@Override
+	public String getPluginName() {
+		return pluginName;
+	}
+
+	@Override
+	public Map<String, Long> getInvocationCounts() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Method method : Method.values()) {
+			values.put(method.name(), latencies.get(method).getCount());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getFailureCounts() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Method method : Method.values()) {
+			values.put(method.name(), failures.get(method).get());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getMeanLatencyNanos() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Method method : Method.values()) {
+			values.put(method.name(), latencies.get(method).getMeanNanos());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getMedianLatencyNanos() {
+		return getLatencyNanosAtPercentile(50);
+	}
+
+	@Override
+	public Map<String, Long> getP99LatencyNanos() {
+		return getLatencyNanosAtPercentile(99);
+	}
+
+	@Override
+	public Map<String, Long> getMaxLatencyNanos() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Method method : Method.values()) {
+			values.put(method.name(), latencies.get(method).getMaxNanos());
+		}
+		return values;
+	}
+
+	private Map<String, Long> getLatencyNanosAtPercentile(double percentile) {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Method method : Method.values()) {
+			values.put(method.name(), latencies.get(method)
+				.getNanosAtPercentile(percentile));
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			try {
+				values.put(gauge.getKey(), gauge.getValue().read());
+			} catch (Throwable anyIssue) {
+				values.put(gauge.getKey(), -1L);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public void reset() {
+		for (Method method : Method.values()) {
+			latencies.get(method).reset();
+			failures.get(method).set(0);
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package org.github.sipuada.plugins.metrics;
+
+import java.util.Map;
+
+public interface PluginMetricsMXBean {
+
+	String getPluginName();
+
+	Map<String, Long> getInvocationCounts();
+
+	Map<String, Long> getFailureCounts();
+
+	Map<String, Long> getMeanLatencyNanos();
+
+	Map<String, Long> getMedianLatencyNanos();
+
+	Map<String, Long> getP99LatencyNanos();
+
+	Map<String, Long> getMaxLatencyNanos();
+
+	Map<String, Long> getGauges();
+
+	void reset();
+
+}
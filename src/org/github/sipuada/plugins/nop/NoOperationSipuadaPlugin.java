@@ -1,12 +1,29 @@
 package org.github.sipuada.plugins.nop;
 
+import java.io.Closeable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.github.sipuada.Constants.RequestMethod;
 import org.github.sipuada.SipUserAgent;
-import org.github.sipuada.plugins.SipuadaPlugin;
+import org.github.sipuada.plugins.admission.AdmissionControlledSipuadaPlugin;
+import org.github.sipuada.plugins.admission.AdmissionController;
+import org.github.sipuada.plugins.admission.AdmissionDecision;
+import org.github.sipuada.plugins.drain.CallDrainer;
+import org.github.sipuada.plugins.drain.DrainableSipuadaPlugin;
+import org.github.sipuada.plugins.metrics.CallSetupPhaseEvent;
+import org.github.sipuada.plugins.metrics.PluginMetrics;
+import org.github.sipuada.plugins.metrics.PluginMetrics.Method;
+import org.github.sipuada.plugins.reinvite.ReinviteSipuadaPlugin;
+import org.github.sipuada.plugins.reinvite.SdpRevisions;
+import org.github.sipuada.plugins.state.CallState;
+import org.github.sipuada.plugins.state.CallStateListener;
+import org.github.sipuada.plugins.state.CallStateListeners;
+import org.github.sipuada.plugins.state.CallStateTransition;
+import org.github.sipuada.plugins.state.RecoverableSipuadaPlugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,10 +35,13 @@ import android.javax.sdp.SdpException;
 import android.javax.sdp.SdpFactory;
 import android.javax.sdp.SessionDescription;
 
-public class NoOperationSipuadaPlugin implements SipuadaPlugin {
+public class NoOperationSipuadaPlugin implements DrainableSipuadaPlugin, ReinviteSipuadaPlugin,
+		RecoverableSipuadaPlugin, AdmissionControlledSipuadaPlugin, Closeable {
 	
 	private final Logger logger = LoggerFactory.getLogger(NoOperationSipuadaPlugin.class);
 
+	private static final String DEFAULT_LOCAL_ADDRESS = "127.0.0.1";
+
 	class Record {
 		Map<String, SessionDescription> storage = new HashMap<>();
 		public Record(SessionDescription offer) {
@@ -43,74 +63,350 @@ public class NoOperationSipuadaPlugin implements SipuadaPlugin {
 		public void setAnswer(SessionDescription answer) {
 			storage.put("answer", answer);
 		}
+		public SessionDescription getLocal() {
+			return storage.get("local");
+		}
+		public void setLocal(SessionDescription local) {
+			storage.put("local", local);
+		}
 	}
-	private final Map<String, Record> records = new HashMap<>();
+	private final Map<String, Record> records = new ConcurrentHashMap<>();
+	private final Map<String, MediaDirection> pendingDirections = new ConcurrentHashMap<>();
+
+	private final PluginMetrics metrics;
+	private final CallStateListeners callStateListeners = new CallStateListeners();
+
+	private final boolean baseline;
+	private final Map<String, SessionDescription> baselineSdps = new ConcurrentHashMap<>();
+	private volatile boolean draining = false;
+	private volatile AdmissionController admissionController;
 
 	public NoOperationSipuadaPlugin() {
-		logger.info("{} sipuada plugin instantiated.", NoOperationSipuadaPlugin.class.getName());
+		this(false);
+	}
+
+	/**
+	 * In baseline mode the plugin keeps no state, records no metrics and hands out
+	 * one offer and answer per local address shared by every call, so that it only
+	 * measures the cost of calling into a plugin. Callers must not modify those
+	 * descriptions, and their session id is the same for every call.
+	 */
+	public NoOperationSipuadaPlugin(boolean baseline) {
+		this.baseline = baseline;
+		metrics = new PluginMetrics(NoOperationSipuadaPlugin.class.getSimpleName(),
+				Integer.toHexString(System.identityHashCode(this)));
+		metrics.registerGauge("records", new PluginMetrics.Gauge() {
+
+			@Override
+			public long read() {
+				return records.size();
+			}
+
+		});
+		metrics.register();
+		logger.info("{} sipuada plugin instantiated{}.", NoOperationSipuadaPlugin.class.getName(),
+				baseline ? " in baseline mode" : "");
+	}
+
+	public PluginMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public void close() {
+		metrics.unregister();
+		logger.info("{} sipuada plugin closed.", NoOperationSipuadaPlugin.class.getName());
 	}
 
 	@Override
 	public SessionDescription generateOffer(String callId, RequestMethod method, String localAddress) {
-		SessionDescription offer = createSdp();
+		if (baseline && !draining) {
+			return getBaselineSdp(localAddress);
+		}
+		long startNanos = System.nanoTime();
+		if (draining) {
+			logger.warn("{} refused to generate offer in context of call invitation {} while draining.",
+					NoOperationSipuadaPlugin.class.getName(), callId);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
+		Record record = records.get(callId);
+		if (record != null && record.getAnswer() != null) {
+			SessionDescription offer = reviseSdp(record.getLocal(), pendingDirections.remove(callId));
+			record.setOffer(offer);
+			record.setLocal(offer);
+			notifyCallState(CallStateTransition.OFFER, callId, CallState.Role.CALLER, offer, null);
+			logger.info("{} generating in-dialog offer {{}} in context of call {} for a {} request...",
+					NoOperationSipuadaPlugin.class.getName(), offer, callId, method);
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, offer);
+		}
+		if (!admit(callId, "offer")) {
+			return metrics.completed(Method.GENERATE_OFFER, startNanos, null);
+		}
+		CallSetupPhaseEvent createSdpPhase = CallSetupPhaseEvent.start
+				(NoOperationSipuadaPlugin.class.getSimpleName(), callId, "createSdp");
+		SessionDescription offer = createSdp(localAddress);
+		createSdpPhase.commit();
 		logger.info("{} generating offer {{}} in context of call invitation {} for a {} request...",
 				NoOperationSipuadaPlugin.class.getName(), offer, callId, method);
-		records.put(callId, new Record(offer));
-		return offer;
+		record = new Record(offer);
+		record.setLocal(offer);
+		records.put(callId, record);
+		notifyCallState(CallStateTransition.OFFER, callId, CallState.Role.CALLER, offer, null);
+		return metrics.completed(Method.GENERATE_OFFER, startNanos, offer);
 	}
 
 	@Override
 	public void receiveAnswerToAcceptedOffer(String callId, SessionDescription answer) {
+		if (baseline) {
+			return;
+		}
+		long startNanos = System.nanoTime();
 		Record record = records.get(callId);
+		if (record == null) {
+			logger.error("{} received answer {{}} in context of unknown call invitation {}.",
+					NoOperationSipuadaPlugin.class.getName(), answer, callId);
+			metrics.failed(Method.RECEIVE_ANSWER);
+			return;
+		}
+		setupStarted(callId);
 		record.setAnswer(answer);
+		notifyCallState(CallStateTransition.ANSWER, callId, CallState.Role.CALLER, null, answer);
 		logger.info("{} received answer {{}} to offer {{}} in context of call invitation {}...",
 				NoOperationSipuadaPlugin.class.getName(), answer, record.getOffer(), callId);
+		metrics.completed(Method.RECEIVE_ANSWER, startNanos);
 	}
 
 	@Override
 	public SessionDescription generateAnswer(String callId, RequestMethod method, SessionDescription offer, String localAddress) {
-		SessionDescription answer = createSdp();
-		records.put(callId, new Record(offer, answer));
+		if (baseline && !draining) {
+			return getBaselineSdp(localAddress);
+		}
+		long startNanos = System.nanoTime();
+		if (draining) {
+			logger.warn("{} refused to generate answer in context of call invitation {} while draining.",
+					NoOperationSipuadaPlugin.class.getName(), callId);
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+		}
+		Record record = records.get(callId);
+		if (record != null && record.getAnswer() != null) {
+			SessionDescription answer = reviseSdp(record.getLocal(), getAnswerDirection(offer));
+			record.setOffer(offer);
+			record.setAnswer(answer);
+			record.setLocal(answer);
+			notifyCallState(CallStateTransition.ANSWER, callId, CallState.Role.CALLEE, offer, answer);
+			logger.info("{} generating in-dialog answer {{}} to offer {{}} in context of call {} for a {} request...",
+					NoOperationSipuadaPlugin.class.getName(), answer, offer, callId, method);
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, answer);
+		}
+		if (!admit(callId, "answer")) {
+			return metrics.completed(Method.GENERATE_ANSWER, startNanos, null);
+		}
+		setupStarted(callId);
+		CallSetupPhaseEvent createSdpPhase = CallSetupPhaseEvent.start
+				(NoOperationSipuadaPlugin.class.getSimpleName(), callId, "createSdp");
+		SessionDescription answer = createSdp(localAddress);
+		createSdpPhase.commit();
+		record = new Record(offer, answer);
+		record.setLocal(answer);
+		records.put(callId, record);
+		notifyCallState(CallStateTransition.ANSWER, callId, CallState.Role.CALLEE, offer, answer);
 		logger.info("{} generating answer {{}} to offer {{}} in context of call invitation {} for a {} request...",
 				NoOperationSipuadaPlugin.class.getName(), answer, offer, callId, method);
-		return answer;
+		return metrics.completed(Method.GENERATE_ANSWER, startNanos, answer);
 	}
 
 	@Override
 	public boolean performSessionSetup(String callId, SipUserAgent userAgent) {
+		if (baseline) {
+			return true;
+		}
+		long startNanos = System.nanoTime();
 		Record record = records.get(callId);
+		if (record == null) {
+			logger.error("{} cannot perform session setup in context of unknown call {}.",
+					NoOperationSipuadaPlugin.class.getName(), callId);
+			return metrics.completed(Method.SESSION_SETUP, startNanos, false);
+		}
 		SessionDescription offer = record.getOffer(), answer = record.getAnswer();
+		notifyCallState(CallStateTransition.SETUP, callId, null, null, null);
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.setupCompleted(callId);
+		}
 		logger.info("{} performing session setup in context of call {}...\nOffer: {{}}\nAnswer: {{}}",
 				NoOperationSipuadaPlugin.class.getName(), callId, offer, answer);
-		return true;
+		return metrics.completed(Method.SESSION_SETUP, startNanos, true);
 	}
 
 	@Override
 	public boolean performSessionTermination(String callId) {
+		if (baseline) {
+			return true;
+		}
+		long startNanos = System.nanoTime();
 		logger.info("{} performing session tear down in context of call {}...",
 				NoOperationSipuadaPlugin.class.getName(), callId);
-		records.remove(callId);
+		discardCallState(callId);
+		notifyCallState(CallStateTransition.TERMINATION, callId, null, null, null);
+		return metrics.completed(Method.SESSION_TERMINATION, startNanos, true);
+	}
+
+	@Override
+	public void updateMediaDirection(String callId, MediaDirection direction) {
+		pendingDirections.put(callId, direction);
+	}
+
+	private MediaDirection getAnswerDirection(SessionDescription offer) {
+		try {
+			return SdpRevisions.getMediaDirection(offer).getAnswerDirection();
+		} catch (SdpException unexpectedException) {
+			return null;
+		}
+	}
+
+	private SessionDescription reviseSdp(SessionDescription previous, MediaDirection direction) {
+		try {
+			SessionDescription revision = SdpRevisions.nextRevision(previous);
+			if (direction != null) {
+				SdpRevisions.setMediaDirection(revision, direction);
+			}
+			return revision;
+		} catch (SdpException unexpectedException) {
+			return null;
+		}
+	}
+
+	@Override
+	public CallDrainer.Report drain(long timeout, TimeUnit unit, CallDrainer.ProgressListener listener) {
+		draining = true;
+		logger.info("{} draining {} active calls...", NoOperationSipuadaPlugin.class.getName(),
+				records.size());
+		return new CallDrainer().drain(records.keySet(), new CallDrainer.Terminator() {
+
+			@Override
+			public boolean terminate(String callId) {
+				discardCallState(callId);
+				notifyCallState(CallStateTransition.TERMINATION, callId, null, null, null);
+				return true;
+			}
+
+		}, timeout, unit, listener);
+	}
+
+	@Override
+	public void addCallStateListener(CallStateListener listener) {
+		callStateListeners.add(listener);
+	}
+
+	@Override
+	public void removeCallStateListener(CallStateListener listener) {
+		callStateListeners.remove(listener);
+	}
+
+	@Override
+	public boolean restoreCallState(CallState state) {
+		if (baseline) {
+			return true;
+		}
+		try {
+			SdpFactory sdpFactory = SdpFactory.getInstance();
+			SessionDescription offer = sdpFactory.createSessionDescriptionFromString(state.getOffer());
+			SessionDescription answer = state.getAnswer() == null ? null
+					: sdpFactory.createSessionDescriptionFromString(state.getAnswer());
+			Record record = new Record(offer, answer);
+			record.setLocal(state.getRole() == CallState.Role.CALLEE ? answer : offer);
+			records.put(state.getCallId(), record);
+			logger.info("{} restored call {}.", NoOperationSipuadaPlugin.class.getName(), state);
+			return true;
+		} catch (SdpException unexpectedException) {
+			logger.error("{} could not restore call {}.", NoOperationSipuadaPlugin.class.getName(),
+					state.getCallId(), unexpectedException);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean discardCallState(String callId) {
+		pendingDirections.remove(callId);
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.release(callId);
+		}
+		return records.remove(callId) != null;
+	}
+
+	@Override
+	public void setAdmissionController(AdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+
+	@Override
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	private boolean admit(String callId, String request) {
+		AdmissionController controller = admissionController;
+		if (controller == null) {
+			return true;
+		}
+		AdmissionDecision decision = controller.admit(callId, 0);
+		if (!decision.isAdmitted()) {
+			logger.warn("{} rejected {} in context of call invitation {}: {}.",
+					NoOperationSipuadaPlugin.class.getName(), request, callId, decision);
+			return false;
+		}
 		return true;
 	}
 
-	private SessionDescription createSdp() {
+	private void setupStarted(String callId) {
+		AdmissionController controller = admissionController;
+		if (controller != null) {
+			controller.setupStarted(callId);
+		}
+	}
+
+	private void notifyCallState(CallStateTransition transition, String callId, CallState.Role role,
+			SessionDescription offer, SessionDescription answer) {
+		if (callStateListeners.isEmpty()) {
+			return;
+		}
+		callStateListeners.fire(transition, new CallState(callId, role,
+				offer == null ? null : offer.toString(), answer == null ? null : answer.toString(),
+				transition == CallStateTransition.SETUP));
+	}
+
+	@Override
+	public boolean isDraining() {
+		return draining;
+	}
+
+	@Override
+	public void resume() {
+		draining = false;
+		logger.info("{} accepting calls again.", NoOperationSipuadaPlugin.class.getName());
+	}
+
+	private SessionDescription createSdp(String localAddress) {
 		try {
 			SessionDescription sdp = SdpFactory.getInstance().createSessionDescription();
-			String sessionName = "-", localIpAddress = "192.168.130.207";
-			long sessionId = (long) Math.random() * 100000000L;
+			String sessionName = "-", localIpAddress = localAddress == null
+					? DEFAULT_LOCAL_ADDRESS : localAddress;
+			String addressType = localIpAddress.indexOf(':') < 0 ? SDPKeywords.IPV4 : SDPKeywords.IPV6;
+			long sessionId = (long) (Math.random() * 100000000L);
 			long sessionVersion = sessionId;
 			OriginField originField = new OriginField();
 			originField.setUsername("NoOpSipuadaPlug-in");
 			originField.setSessionId(sessionId);
 			originField.setSessVersion(sessionVersion);
 			originField.setNetworkType(SDPKeywords.IN);
-			originField.setAddressType(SDPKeywords.IPV4);
+			originField.setAddressType(addressType);
 			originField.setAddress(localIpAddress);
 			SessionNameField sessionNameField = new SessionNameField();
 			sessionNameField.setSessionName(sessionName);
 			ConnectionField connectionField = new ConnectionField();
 			connectionField.setNetworkType(SDPKeywords.IN);
-			connectionField.setAddressType(SDPKeywords.IPV4);
+			connectionField.setAddressType(addressType);
 			connectionField.setAddress(localIpAddress);
 			sdp.setOrigin(originField);
 			sdp.setSessionName(sessionNameField);
@@ -122,4 +418,20 @@ public class NoOperationSipuadaPlugin implements SipuadaPlugin {
 		}
 	}
 
+	private SessionDescription getBaselineSdp(String localAddress) {
+		String key = localAddress == null ? DEFAULT_LOCAL_ADDRESS : localAddress;
+		SessionDescription sdp = baselineSdps.get(key);
+		if (sdp == null) {
+			sdp = createSdp(key);
+			if (sdp == null) {
+				return null;
+			}
+			SessionDescription existingSdp = baselineSdps.putIfAbsent(key, sdp);
+			if (existingSdp != null) {
+				sdp = existingSdp;
+			}
+		}
+		return sdp;
+	}
+
 }
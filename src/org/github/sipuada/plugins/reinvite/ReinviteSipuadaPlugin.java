@@ -0,0 +1,48 @@
+package org.github.sipuada.plugins.reinvite;
+
+import java.util.Locale;
+
+import org.github.sipuada.plugins.SipuadaPlugin;
+
+public interface ReinviteSipuadaPlugin extends SipuadaPlugin {
+
+	enum MediaDirection {
+
+		SENDRECV,
+		SENDONLY,
+		RECVONLY,
+		INACTIVE;
+
+		public String getAttribute() {
+			return name().toLowerCase(Locale.US);
+		}
+
+		public MediaDirection getAnswerDirection() {
+			switch (this) {
+				case SENDONLY:
+					return RECVONLY;
+				case RECVONLY:
+					return SENDONLY;
+				default:
+					return this;
+			}
+		}
+
+		public static MediaDirection fromAttribute(String attribute) {
+			if (attribute == null) {
+				return null;
+			}
+			for (MediaDirection direction : values()) {
+				if (direction.getAttribute().equals(attribute.trim()
+						.toLowerCase(Locale.US))) {
+					return direction;
+				}
+			}
+			return null;
+		}
+
+	}
+
+	void updateMediaDirection(String callId, MediaDirection direction);
+
+}
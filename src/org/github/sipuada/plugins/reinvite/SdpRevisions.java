@@ -0,0 +1,116 @@
+package org.github.sipuada.plugins.reinvite;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Vector;
+
+import org.github.sipuada.plugins.reinvite.ReinviteSipuadaPlugin.MediaDirection;
+
+import android.gov.nist.gnjvx.sdp.fields.AttributeField;
+import android.javax.sdp.MediaDescription;
+import android.javax.sdp.SdpConstants;
+import android.javax.sdp.SdpException;
+import android.javax.sdp.SessionDescription;
+
+public final class SdpRevisions {
+
+	private SdpRevisions() {}
+
+	public static SessionDescription nextRevision(SessionDescription previous)
+			throws SdpException {
+		SessionDescription revision;
+		try {
+			revision = (SessionDescription) previous.clone();
+		} catch (CloneNotSupportedException unexpectedException) {
+			throw new SdpException(unexpectedException.getMessage());
+		}
+		revision.getOrigin().setSessionVersion(previous.getOrigin()
+			.getSessionVersion() + 1);
+		return revision;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static MediaDirection getMediaDirection(SessionDescription sdp)
+			throws SdpException {
+		Vector<MediaDescription> mediaDescriptions = sdp.getMediaDescriptions(false);
+		if (mediaDescriptions != null) {
+			for (MediaDescription mediaDescription : mediaDescriptions) {
+				Vector<AttributeField> attributeFields = mediaDescription
+					.getAttributes(false);
+				if (attributeFields == null) {
+					continue;
+				}
+				for (AttributeField attributeField : attributeFields) {
+					MediaDirection direction = getMediaDirection(attributeField);
+					if (direction != null) {
+						return direction;
+					}
+				}
+			}
+		}
+		return MediaDirection.SENDRECV;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static void setMediaDirection(SessionDescription sdp,
+			MediaDirection direction) throws SdpException {
+		Vector<MediaDescription> mediaDescriptions = sdp.getMediaDescriptions(false);
+		if (mediaDescriptions == null) {
+			return;
+		}
+		for (MediaDescription mediaDescription : mediaDescriptions) {
+			Vector<AttributeField> attributeFields = mediaDescription
+				.getAttributes(false);
+			Vector<AttributeField> updatedAttributeFields = new Vector<>();
+			if (attributeFields != null) {
+				for (AttributeField attributeField : attributeFields) {
+					if (getMediaDirection(attributeField) == null) {
+						updatedAttributeFields.add(attributeField);
+					}
+				}
+			}
+			AttributeField directionAttribute = new AttributeField();
+			directionAttribute.setValue(direction.getAttribute());
+			updatedAttributeFields.add(directionAttribute);
+			mediaDescription.setAttributes(updatedAttributeFields);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static Set<String> getRtpmaps(SessionDescription sdp)
+			throws SdpException {
+		Set<String> rtpmaps = new HashSet<>();
+		Vector<MediaDescription> mediaDescriptions = sdp.getMediaDescriptions(false);
+		if (mediaDescriptions == null) {
+			return rtpmaps;
+		}
+		for (MediaDescription mediaDescription : mediaDescriptions) {
+			Vector<AttributeField> attributeFields = mediaDescription
+				.getAttributes(false);
+			if (attributeFields == null) {
+				continue;
+			}
+			for (AttributeField attributeField : attributeFields) {
+				if (SdpConstants.RTPMAP.equals(attributeField.getName())
+						&& attributeField.getValue() != null) {
+					String[] rtpmap = attributeField.getValue().trim().split(" ");
+					rtpmaps.add(rtpmap[rtpmap.length - 1].trim()
+						.toUpperCase(Locale.US));
+				}
+			}
+		}
+		return rtpmaps;
+	}
+
+	private static MediaDirection getMediaDirection(AttributeField attributeField)
+			throws SdpException {
+		MediaDirection direction = MediaDirection.fromAttribute
+			(attributeField.getName());
+		if (direction == null && attributeField.getName() == null) {
+			direction = MediaDirection.fromAttribute(attributeField.getValue());
+		}
+		return direction;
+	}
+
+}
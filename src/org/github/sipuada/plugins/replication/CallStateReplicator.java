@@ -0,0 +1,206 @@
+package org.github.sipuada.plugins.replication;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.sipuada.plugins.state.CallState;
+import org.github.sipuada.plugins.state.CallStateListener;
+import org.github.sipuada.plugins.state.CallStateTransition;
+import org.github.sipuada.plugins.state.RecoverableSipuadaPlugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replicates the call state of a plugin to the other nodes sharing a transport,
+ * and applies their call state to it, so any node can serve any call.
+ * <p>
+ * Transitions are only marked dirty on the request path. A background flush picks
+ * up every dirty call once per interval and publishes its latest full state, so a
+ * call going through offer, answer and setup within one interval costs a single
+ * update. Updates received from other nodes are applied with local notifications
+ * suppressed, so they are never echoed back.
+ */
+public class CallStateReplicator implements CallStateListener, ReplicationTransport.Receiver {
+
+	private final Logger logger = LoggerFactory.getLogger(CallStateReplicator.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final String node;
+	private final RecoverableSipuadaPlugin plugin;
+	private final ReplicationTransport transport;
+	private final int batchSize;
+
+	private final Map<String, CallState> knownCalls = new ConcurrentHashMap<>();
+	private final Map<String, CallStateTransition> dirtyCalls = new ConcurrentHashMap<>();
+	private final ThreadLocal<Boolean> applyingRemoteUpdates = new ThreadLocal<>();
+	private final ScheduledExecutorService flusher;
+
+	private final AtomicLong publishedUpdates = new AtomicLong();
+	private final AtomicLong publishedBatches = new AtomicLong();
+	private final AtomicLong appliedUpdates = new AtomicLong();
+
+	public CallStateReplicator(String node, RecoverableSipuadaPlugin plugin,
+			ReplicationTransport transport, long flushInterval, TimeUnit unit) {
+		this(node, plugin, transport, flushInterval, unit, DEFAULT_BATCH_SIZE);
+	}
+
+	public CallStateReplicator(final String node, RecoverableSipuadaPlugin plugin,
+			ReplicationTransport transport, long flushInterval, TimeUnit unit, int batchSize) {
+		this.node = node;
+		this.plugin = plugin;
+		this.transport = transport;
+		this.batchSize = batchSize;
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("%s-%s",
+					CallStateReplicator.class.getSimpleName(), node));
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+
+		}, flushInterval, flushInterval, unit);
+		transport.subscribe(node, this);
+		plugin.addCallStateListener(this);
+		logger.info("{} replicating call state of {} as node {}.",
+			CallStateReplicator.class.getSimpleName(),
+			plugin.getClass().getSimpleName(), node);
+	}
+
+	@Override
+	public void onCallStateTransition(CallStateTransition transition, CallState state) {
+		if (applyingRemoteUpdates.get() != null) {
+			return;
+		}
+		String callId = state.getCallId();
+		if (transition == CallStateTransition.TERMINATION) {
+			knownCalls.remove(callId);
+		} else {
+			CallState previous = knownCalls.get(callId);
+			knownCalls.put(callId, previous == null ? state
+				: previous.apply(transition, state));
+		}
+		dirtyCalls.put(callId, transition);
+	}
+
+	/**
+	 * Publishes the latest state of every call that changed since the previous
+	 * flush. Runs periodically on the replicator's own thread.
+	 */
+	public synchronized void flush() {
+		if (dirtyCalls.isEmpty()) {
+			return;
+		}
+		List<CallStateUpdate> batch = new ArrayList<>(Math.min(batchSize, dirtyCalls.size()));
+		Iterator<Map.Entry<String, CallStateTransition>> iterator
+			= dirtyCalls.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, CallStateTransition> dirtyCall = iterator.next();
+			String callId = dirtyCall.getKey();
+			CallStateTransition transition = dirtyCall.getValue();
+			iterator.remove();
+			CallState state = knownCalls.get(callId);
+			if (state == null) {
+				batch.add(new CallStateUpdate(CallStateTransition.TERMINATION,
+					new CallState(callId, null, null, null, false)));
+			} else if (transition != CallStateTransition.TERMINATION) {
+				batch.add(new CallStateUpdate(transition, state));
+			}
+			if (batch.size() == batchSize) {
+				if (!publish(batch)) {
+					return;
+				}
+				batch = new ArrayList<>(batchSize);
+			}
+		}
+		if (!batch.isEmpty()) {
+			publish(batch);
+		}
+	}
+
+	private boolean publish(List<CallStateUpdate> batch) {
+		try {
+			transport.publish(node, batch);
+			publishedUpdates.addAndGet(batch.size());
+			publishedBatches.incrementAndGet();
+			return true;
+		} catch (Throwable anyIssue) {
+			for (CallStateUpdate update : batch) {
+				dirtyCalls.putIfAbsent(update.getState().getCallId(), update.getTransition());
+			}
+			logger.error("{} could not publish {} updates from node {}; they will be "
+				+ "published again on the next flush.",
+				CallStateReplicator.class.getSimpleName(), batch.size(), node, anyIssue);
+			return false;
+		}
+	}
+
+	@Override
+	public void onCallStateUpdates(String sourceNode, List<CallStateUpdate> updates) {
+		applyingRemoteUpdates.set(Boolean.TRUE);
+		try {
+			for (CallStateUpdate update : updates) {
+				CallState state = update.getState();
+				if (update.getTransition() == CallStateTransition.TERMINATION) {
+					knownCalls.remove(state.getCallId());
+					plugin.discardCallState(state.getCallId());
+				} else if (plugin.restoreCallState(state)) {
+					knownCalls.put(state.getCallId(), state);
+				} else {
+					logger.warn("{} could not apply update {} from node {} on node {}.",
+						CallStateReplicator.class.getSimpleName(), update, sourceNode, node);
+					continue;
+				}
+				appliedUpdates.incrementAndGet();
+			}
+		} finally {
+			applyingRemoteUpdates.remove();
+		}
+	}
+
+	public void close() {
+		plugin.removeCallStateListener(this);
+		transport.unsubscribe(node);
+		flusher.shutdown();
+		flush();
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public int getPendingUpdates() {
+		return dirtyCalls.size();
+	}
+
+	public long getPublishedUpdates() {
+		return publishedUpdates.get();
+	}
+
+	public long getPublishedBatches() {
+		return publishedBatches.get();
+	}
+
+	public long getAppliedUpdates() {
+		return appliedUpdates.get();
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.github.sipuada.plugins.replication;
+
+import org.github.sipuada.plugins.state.CallState;
+import org.github.sipuada.plugins.state.CallStateTransition;
+
+public class CallStateUpdate {
+
+	private final CallStateTransition transition;
+	private final CallState state;
+
+	public CallStateUpdate(CallStateTransition transition, CallState state) {
+		this.transition = transition;
+		this.state = state;
+	}
+
+	public CallStateTransition getTransition() {
+		return transition;
+	}
+
+	public CallState getState() {
+		return state;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s", transition, state);
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.github.sipuada.plugins.replication;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process transport that hands every published batch to all other nodes
+ * subscribed to the same instance, on the publishing thread.
+ */
+public class LoopbackReplicationTransport implements ReplicationTransport {
+
+	private final Logger logger = LoggerFactory.getLogger(LoopbackReplicationTransport.class);
+
+	private final Map<String, Receiver> receivers = new ConcurrentHashMap<>();
+
+	@Override
+	public void publish(String sourceNode, List<CallStateUpdate> updates) {
+		for (Map.Entry<String, Receiver> receiver : receivers.entrySet()) {
+			if (receiver.getKey().equals(sourceNode)) {
+				continue;
+			}
+			try {
+				receiver.getValue().onCallStateUpdates(sourceNode, updates);
+			} catch (Throwable anyIssue) {
+				logger.error("{} could not deliver {} updates from {} to {}.",
+					LoopbackReplicationTransport.class.getSimpleName(), updates.size(),
+					sourceNode, receiver.getKey(), anyIssue);
+			}
+		}
+	}
+
+	@Override
+	public void subscribe(String node, Receiver receiver) {
+		receivers.put(node, receiver);
+	}
+
+	@Override
+	public void unsubscribe(String node) {
+		receivers.remove(node);
+	}
+
+}
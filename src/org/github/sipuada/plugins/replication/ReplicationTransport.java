@@ -0,0 +1,20 @@
+package org.github.sipuada.plugins.replication;
+
+import java.io.IOException;
+import java.util.List;
+
+public interface ReplicationTransport {
+
+	interface Receiver {
+
+		void onCallStateUpdates(String sourceNode, List<CallStateUpdate> updates);
+
+	}
+
+	void publish(String sourceNode, List<CallStateUpdate> updates) throws IOException;
+
+	void subscribe(String node, Receiver receiver);
+
+	void unsubscribe(String node);
+
+}
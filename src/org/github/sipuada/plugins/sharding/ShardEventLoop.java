@@ -0,0 +1,83 @@
+package org.github.sipuada.plugins.sharding;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ShardEventLoop implements Runnable {
+
+	private final Logger logger = LoggerFactory.getLogger(ShardEventLoop.class);
+
+	class ShardTask<T> extends FutureTask<T> {
+		ShardTask(Callable<T> callable) {
+			super(callable);
+		}
+		void reject() {
+			setException(new RejectedExecutionException(thread.getName() + " is shut down."));
+		}
+	}
+
+	private final Queue<ShardTask<?>> tasks = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	public ShardEventLoop(String name) {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public <T> Future<T> submit(Callable<T> callable) {
+		if (!running) {
+			throw new RejectedExecutionException(thread.getName() + " is shut down.");
+		}
+		ShardTask<T> task = new ShardTask<>(callable);
+		tasks.offer(task);
+		if (!running && tasks.remove(task)) {
+			throw new RejectedExecutionException(thread.getName() + " is shut down.");
+		}
+		LockSupport.unpark(thread);
+		return task;
+	}
+
+	public boolean isOwnerThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	public int getPendingTasks() {
+		return tasks.size();
+	}
+
+	@Override
+	public void run() {
+		while (running || !tasks.isEmpty()) {
+			Runnable task = tasks.poll();
+			if (task == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			try {
+				task.run();
+			} catch (Throwable anyIssue) {
+				logger.error("{} could not run task.", thread.getName(), anyIssue);
+			}
+		}
+		ShardTask<?> straggler;
+		while ((straggler = tasks.poll()) != null) {
+			straggler.reject();
+		}
+	}
+
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+}
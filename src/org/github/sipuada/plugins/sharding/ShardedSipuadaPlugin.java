@@ -0,0 +1,290 @@
+package org.github.sipuada.plugins.sharding;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.github.sipuada.Constants.RequestMethod;
+import org.github.sipuada.SipUserAgent;
+import org.github.sipuada.plugins.SipuadaPlugin;
+import org.github.sipuada.plugins.execution.BlockingWorkExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.javax.sdp.SessionDescription;
+
+/**
+ * Partitions calls across single-threaded shards, each owning one plugin instance,
+ * so that all requests of a call run in order on its shard's thread.
+ * <p>
+ * Only requests are confined to the shard's thread. Plugins may still touch call
+ * state from threads of their own, as the ICE plugin does from its agents' state
+ * listeners and its blocking work, so shard plugins must keep their state safe for
+ * concurrent access.
+ * <p>
+ * Plugins whose offers and answers block, such as the ICE plugin while it harvests
+ * candidates, should be sharded with a {@link BlockingWorkExecutor}: offers and
+ * answers then run on it rather than on the shard's thread, so one slow call does
+ * not hold up every other call of its shard. A call's requests still run one at a
+ * time, as its signalling waits for each of them. Plugins that allocate ports must
+ * share one allocator across shards, e.g. one
+ * {@link org.github.sipuada.plugins.audio.AudioPortAllocator} for every audio
+ * shard plugin.
+ * <p>
+ * A request that does not complete in time is answered with nothing, and once it
+ * eventually runs the call is terminated on its shard, so that no call is left
+ * behind with state its signalling never learned of.
+ */
+public class ShardedSipuadaPlugin implements SipuadaPlugin, Closeable {
+
+	private final Logger logger = LoggerFactory.getLogger(ShardedSipuadaPlugin.class);
+
+	public interface PluginFactory {
+
+		SipuadaPlugin createPlugin(int shard);
+
+	}
+
+	private enum Request {
+		NEGOTIATION, SETUP, TERMINATION
+	}
+
+	private final List<SipuadaPlugin> plugins = new ArrayList<>();
+	private final List<ShardEventLoop> eventLoops = new ArrayList<>();
+	private final BlockingWorkExecutor blockingWork;
+	private volatile long dispatchTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+
+	public ShardedSipuadaPlugin(PluginFactory factory) {
+		this(Runtime.getRuntime().availableProcessors(), factory);
+	}
+
+	public ShardedSipuadaPlugin(int shards, PluginFactory factory) {
+		this(shards, factory, null);
+	}
+
+	/**
+	 * Offers and answers run on the given executor instead of on the shards' threads.
+	 */
+	public ShardedSipuadaPlugin(int shards, PluginFactory factory,
+			BlockingWorkExecutor blockingWork) {
+		this.blockingWork = blockingWork;
+		for (int shard = 0; shard < shards; shard++) {
+			plugins.add(factory.createPlugin(shard));
+			eventLoops.add(new ShardEventLoop(String.format("%s-%d",
+					ShardedSipuadaPlugin.class.getSimpleName(), shard)));
+		}
+		logger.info("{} sipuada plugin instantiated with {} shards{}.",
+				ShardedSipuadaPlugin.class.getName(), shards,
+				blockingWork != null ? " and blocking work offloaded" : "");
+	}
+
+	public List<SipuadaPlugin> getPlugins() {
+		return Collections.unmodifiableList(plugins);
+	}
+
+	/**
+	 * Sets how long a request waits for its shard before giving up.
+	 */
+	public void setDispatchTimeout(long timeout, TimeUnit unit) {
+		dispatchTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	public int getShard(String callId) {
+		int hash = callId.hashCode();
+		return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % plugins.size();
+	}
+
+	@Override
+	public SessionDescription generateOffer(final String callId, final RequestMethod method,
+			final String localAddress) {
+		final SipuadaPlugin plugin = plugins.get(getShard(callId));
+		return dispatch(callId, new Callable<SessionDescription>() {
+
+			@Override
+			public SessionDescription call() {
+				return plugin.generateOffer(callId, method, localAddress);
+			}
+
+		}, Request.NEGOTIATION);
+	}
+
+	@Override
+	public void receiveAnswerToAcceptedOffer(final String callId, final SessionDescription answer) {
+		final SipuadaPlugin plugin = plugins.get(getShard(callId));
+		dispatch(callId, new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				plugin.receiveAnswerToAcceptedOffer(callId, answer);
+				return null;
+			}
+
+		}, Request.SETUP);
+	}
+
+	@Override
+	public SessionDescription generateAnswer(final String callId, final RequestMethod method,
+			final SessionDescription offer, final String localAddress) {
+		final SipuadaPlugin plugin = plugins.get(getShard(callId));
+		return dispatch(callId, new Callable<SessionDescription>() {
+
+			@Override
+			public SessionDescription call() {
+				return plugin.generateAnswer(callId, method, offer, localAddress);
+			}
+
+		}, Request.NEGOTIATION);
+	}
+
+	@Override
+	public boolean performSessionSetup(final String callId, final SipUserAgent userAgent) {
+		final SipuadaPlugin plugin = plugins.get(getShard(callId));
+		Boolean result = dispatch(callId, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return plugin.performSessionSetup(callId, userAgent);
+			}
+
+		}, Request.SETUP);
+		return result != null && result;
+	}
+
+	@Override
+	public boolean performSessionTermination(final String callId) {
+		final SipuadaPlugin plugin = plugins.get(getShard(callId));
+		Boolean result = dispatch(callId, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return plugin.performSessionTermination(callId);
+			}
+
+		}, Request.TERMINATION);
+		return result != null && result;
+	}
+
+	private <T> T dispatch(final String callId, final Callable<T> call, final Request request) {
+		ShardEventLoop eventLoop = eventLoops.get(getShard(callId));
+		boolean offloaded = request == Request.NEGOTIATION && blockingWork != null;
+		Future<T> pendingResult = null;
+		final AtomicBoolean settled = new AtomicBoolean();
+		try {
+			if (eventLoop.isOwnerThread()) {
+				return call.call();
+			}
+			Callable<T> settledCall = new Callable<T>() {
+
+				@Override
+				public T call() throws Exception {
+					try {
+						return call.call();
+					} finally {
+						if (!settled.compareAndSet(false, true) && request != Request.TERMINATION) {
+							terminateAbandoned(callId);
+						}
+					}
+				}
+
+			};
+			if (offloaded) {
+				pendingResult = blockingWork.submit(callId, settledCall);
+			} else {
+				pendingResult = eventLoop.submit(settledCall);
+			}
+			return pendingResult.get(dispatchTimeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException timeout) {
+			logger.error("{} shard {} did not answer in time in context of call {} ({} pending tasks).",
+					ShardedSipuadaPlugin.class.getName(), getShard(callId), callId,
+					eventLoop.getPendingTasks());
+			abandon(callId, pendingResult, settled, offloaded, request);
+			return null;
+		} catch (InterruptedException interrupted) {
+			Thread.currentThread().interrupt();
+			abandon(callId, pendingResult, settled, offloaded, request);
+			return null;
+		} catch (ExecutionException executionIssue) {
+			logger.error("{} shard {} failed in context of call {}.",
+					ShardedSipuadaPlugin.class.getName(), getShard(callId), callId,
+					executionIssue.getCause());
+			return null;
+		} catch (Throwable anyIssue) {
+			logger.error("{} could not dispatch to shard {} in context of call {}.",
+					ShardedSipuadaPlugin.class.getName(), getShard(callId), callId, anyIssue);
+			return null;
+		}
+	}
+
+	/**
+	 * Gives up on a pending request. A request that has not started on its shard yet
+	 * is cancelled; one that already runs terminates its call once it completes.
+	 */
+	private void abandon(String callId, Future<?> pendingResult, AtomicBoolean settled,
+			boolean offloaded, Request request) {
+		if (pendingResult == null) {
+			return;
+		}
+		if (!offloaded) {
+			pendingResult.cancel(false);
+		}
+		if (!settled.compareAndSet(false, true) && request != Request.TERMINATION) {
+			terminateAbandoned(callId);
+		}
+	}
+
+	private void terminateAbandoned(final String callId) {
+		final SipuadaPlugin plugin = plugins.get(getShard(callId));
+		try {
+			eventLoops.get(getShard(callId)).submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() {
+					logger.warn("{} terminating call {} as its request completed after "
+							+ "it was abandoned.", ShardedSipuadaPlugin.class.getName(), callId);
+					return plugin.performSessionTermination(callId);
+				}
+
+			});
+		} catch (RejectedExecutionException shutDown) {
+			logger.error("{} could not terminate abandoned call {} as shard {} is shut down.",
+					ShardedSipuadaPlugin.class.getName(), callId, getShard(callId));
+		}
+	}
+
+	public void shutdown() {
+		for (ShardEventLoop eventLoop : eventLoops) {
+			eventLoop.shutdown();
+		}
+		if (blockingWork != null) {
+			blockingWork.shutdown();
+		}
+	}
+
+	/**
+	 * Shuts the shards down and closes every closeable shard plugin.
+	 */
+	@Override
+	public void close() {
+		shutdown();
+		for (SipuadaPlugin plugin : plugins) {
+			if (plugin instanceof Closeable) {
+				try {
+					((Closeable) plugin).close();
+				} catch (IOException anyIssue) {
+					logger.error("{} could not close shard plugin {}.", ShardedSipuadaPlugin.class.getName(),
+							plugin.getClass().getSimpleName(), anyIssue);
+				}
+			}
+		}
+	}
+
+}
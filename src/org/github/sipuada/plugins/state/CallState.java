@@ -0,0 +1,64 @@
+package org.github.sipuada.plugins.state;
+
+public class CallState {
+
+	public enum Role {
+		CALLER,
+		CALLEE
+	}
+
+	private final String callId;
+	private final Role role;
+	private final String offer;
+	private final String answer;
+	private final boolean established;
+
+	public CallState(String callId, Role role, String offer, String answer,
+			boolean established) {
+		this.callId = callId;
+		this.role = role;
+		this.offer = offer;
+		this.answer = answer;
+		this.established = established;
+	}
+
+	public String getCallId() {
+		return callId;
+	}
+
+	public Role getRole() {
+		return role;
+	}
+
+	public String getOffer() {
+		return offer;
+	}
+
+	public String getAnswer() {
+		return answer;
+	}
+
+	public boolean isEstablished() {
+		return established;
+	}
+
+	public CallState apply(CallStateTransition transition, CallState update) {
+		switch (transition) {
+			case SETUP:
+				return new CallState(callId, update.role != null ? update.role : role,
+					update.offer != null ? update.offer : offer,
+					update.answer != null ? update.answer : answer, true);
+			default:
+				return new CallState(callId, update.role != null ? update.role : role,
+					update.offer != null ? update.offer : offer,
+					update.answer != null ? update.answer : answer,
+					established || update.established);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[%s, established=%s]", callId, role, established);
+	}
+
+}
@@ -0,0 +1,7 @@
+package org.github.sipuada.plugins.state;
+
+public interface CallStateListener {
+
+	void onCallStateTransition(CallStateTransition transition, CallState state);
+
+}
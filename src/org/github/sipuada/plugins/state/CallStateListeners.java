@@ -0,0 +1,39 @@
+package org.github.sipuada.plugins.state;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class CallStateListeners {
+
+	private final Logger logger = LoggerFactory.getLogger(CallStateListeners.class);
+
+	private final List<CallStateListener> listeners = new CopyOnWriteArrayList<>();
+
+	public void add(CallStateListener listener) {
+		listeners.add(listener);
+	}
+
+	public void remove(CallStateListener listener) {
+		listeners.remove(listener);
+	}
+
+	public boolean isEmpty() {
+		return listeners.isEmpty();
+	}
+
+	public void fire(CallStateTransition transition, CallState state) {
+		for (CallStateListener listener : listeners) {
+			try {
+				listener.onCallStateTransition(transition, state);
+			} catch (Throwable anyIssue) {
+				logger.error("{} could not be notified of {} transition of call {}.",
+					listener.getClass().getSimpleName(), transition,
+					state.getCallId(), anyIssue);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,8 @@
+package org.github.sipuada.plugins.state;
+
+public enum CallStateTransition {
+	OFFER,
+	ANSWER,
+	SETUP,
+	TERMINATION
+}
@@ -0,0 +1,15 @@
+package org.github.sipuada.plugins.state;
+
+import org.github.sipuada.plugins.SipuadaPlugin;
+
+public interface RecoverableSipuadaPlugin extends SipuadaPlugin {
+
+	void addCallStateListener(CallStateListener listener);
+
+	void removeCallStateListener(CallStateListener listener);
+
+	boolean restoreCallState(CallState state);
+
+	boolean discardCallState(String callId);
+
+}
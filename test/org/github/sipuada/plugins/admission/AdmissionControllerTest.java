@@ -0,0 +1,121 @@
+package org.github.sipuada.plugins.admission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.github.sipuada.plugins.admission.AdmissionController.Resource;
+import org.github.sipuada.plugins.metrics.PluginMetrics;
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+
+	@Test
+	public void admitsUpToLiveCallBudget() {
+		AdmissionController controller = new AdmissionController()
+			.setBudget(Resource.LIVE_CALLS, 2);
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("first", 1));
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("second", 1));
+		assertEquals(AdmissionDecision.LIVE_CALLS_EXHAUSTED, controller.admit("third", 1));
+		controller.release("first");
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("third", 1));
+		assertEquals(2, controller.getLiveCalls());
+		assertEquals(3, controller.getDecisions(AdmissionDecision.ADMITTED));
+		assertEquals(1, controller.getDecisions(AdmissionDecision.LIVE_CALLS_EXHAUSTED));
+	}
+
+	@Test
+	public void reservesAndReleasesPorts() {
+		AdmissionController controller = new AdmissionController()
+			.setBudget(Resource.PORTS, 4);
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("first", 3));
+		assertEquals(AdmissionDecision.PORTS_EXHAUSTED, controller.admit("second", 2));
+		assertEquals(3, controller.getReservedPorts());
+		assertEquals(1, controller.getLiveCalls());
+		controller.release("first");
+		controller.release("first");
+		assertEquals(0, controller.getReservedPorts());
+		assertEquals(0, controller.getLiveCalls());
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("second", 2));
+	}
+
+	@Test
+	public void readmitsKnownCallsWithoutReserving() {
+		AdmissionController controller = new AdmissionController()
+			.setBudget(Resource.LIVE_CALLS, 1);
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("first", 2));
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("first", 2));
+		assertEquals(1, controller.getLiveCalls());
+		assertEquals(2, controller.getReservedPorts());
+	}
+
+	@Test
+	public void rejectsOnGaugesAndNotifiesListener() {
+		final long[] agents = new long[1];
+		final List<AdmissionDecision> rejections = new ArrayList<>();
+		AdmissionController controller = new AdmissionController()
+			.setBudget(Resource.AGENTS, 1)
+			.setGauge(Resource.AGENTS, new PluginMetrics.Gauge() {
+
+				@Override
+				public long read() {
+					return agents[0];
+				}
+
+			});
+		controller.setRejectionListener(new AdmissionController.RejectionListener() {
+
+			@Override
+			public void onRejection(String callId, AdmissionDecision decision) {
+				rejections.add(decision);
+			}
+
+		});
+		assertEquals(AdmissionDecision.ADMITTED, controller.admit("first", 1));
+		agents[0] = 1;
+		assertEquals(AdmissionDecision.AGENTS_EXHAUSTED, controller.admit("second", 1));
+		assertEquals(1, controller.getLiveCalls());
+		assertEquals(1, rejections.size());
+		assertEquals(AdmissionDecision.AGENTS_EXHAUSTED, rejections.get(0));
+	}
+
+	@Test
+	public void feedsOnlyMarkedFirstSetupsIntoLatencyAverage() throws InterruptedException {
+		AdmissionController controller = new AdmissionController();
+		controller.admit("unmarked", 1);
+		controller.setupCompleted("unmarked");
+		assertEquals(0, controller.getSetupLatencyAverageNanos());
+
+		controller.admit("marked", 1);
+		controller.setupStarted("marked");
+		Thread.sleep(20);
+		controller.setupCompleted("marked");
+		long average = controller.getSetupLatencyAverageNanos();
+		assertTrue(average >= TimeUnit.MILLISECONDS.toNanos(20));
+		Thread.sleep(20);
+		controller.setupCompleted("marked");
+		assertEquals(average, controller.getSetupLatencyAverageNanos());
+	}
+
+	@Test
+	public void shedsCallsWhileSetupLatencyExceedsBudget() throws InterruptedException {
+		AdmissionController controller = new AdmissionController()
+			.setSetupLatencyBudget(1, TimeUnit.NANOSECONDS);
+		controller.admit("slow", 1);
+		controller.setupStarted("slow");
+		Thread.sleep(10);
+		controller.setupCompleted("slow");
+		int rejected = 0;
+		for (int call = 0; call < 100; call++) {
+			if (controller.admit("call-" + call, 1) == AdmissionDecision.SETUP_LATENCY_EXCEEDED) {
+				rejected++;
+			}
+		}
+		assertTrue(rejected >= 99);
+		assertEquals(rejected, controller.getDecisions(AdmissionDecision.SETUP_LATENCY_EXCEEDED));
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.github.sipuada.plugins.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.github.sipuada.plugins.audio.AudioCodecRegistry.LoadLevel;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AudioCodecRegistryTest {
+
+	private static final AudioCodec EXPENSIVE = new AudioCodec("OPUS", 111, 48000, true, 9, 32000, 50);
+	private static final AudioCodec CHEAP = new AudioCodec("PCMA", 8, 8000, true, 1, 64000, 50);
+	private static final AudioCodec MODERATE = new AudioCodec("G722", 9, 8000, true, 4, 64000, 50);
+	private static final AudioCodec DISABLED = new AudioCodec("GSM", 3, 8000, false, 0, 13200, 50);
+
+	private final double[] load = new double[1];
+	private AudioCodecRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new AudioCodecRegistry();
+		registry.setThresholds(0.6, 0.85);
+		registry.register(EXPENSIVE);
+		registry.register(CHEAP);
+		registry.register(DISABLED);
+		registry.register(MODERATE);
+	}
+
+	@Test
+	public void followsPreferenceOrderBelowEconomyThreshold() {
+		setLoad(0.59);
+		assertEquals(LoadLevel.NORMAL, registry.getLoadLevel());
+		assertEquals(Arrays.asList(EXPENSIVE, CHEAP, MODERATE), registry.getOfferedCodecs());
+		assertEquals(Arrays.asList(EXPENSIVE, CHEAP, MODERATE), registry.getNegotiationOrder());
+	}
+
+	@Test
+	public void sortsByCostFromEconomyThreshold() {
+		setLoad(0.6);
+		assertEquals(LoadLevel.ECONOMY, registry.getLoadLevel());
+		assertEquals(Arrays.asList(CHEAP, MODERATE, EXPENSIVE), registry.getOfferedCodecs());
+		assertEquals(Arrays.asList(CHEAP, MODERATE, EXPENSIVE), registry.getNegotiationOrder());
+	}
+
+	@Test
+	public void offersCheapestCodecOnlyFromPressureThreshold() {
+		setLoad(0.85);
+		assertEquals(LoadLevel.PRESSURE, registry.getLoadLevel());
+		assertEquals(Arrays.asList(CHEAP), registry.getOfferedCodecs());
+		assertEquals(Arrays.asList(CHEAP, MODERATE, EXPENSIVE), registry.getNegotiationOrder());
+	}
+
+	@Test
+	public void offersNothingUnderPressureWithoutEnabledCodecs() {
+		setLoad(0.9);
+		registry.setEnabled(EXPENSIVE.getRtpmap(), false);
+		registry.setEnabled(CHEAP.getRtpmap(), false);
+		registry.setEnabled(MODERATE.getRtpmap(), false);
+		assertEquals(0, registry.getOfferedCodecs().size());
+	}
+
+	@Test
+	public void reenablingKeepsPreferenceOrder() {
+		setLoad(0);
+		registry.setEnabled(CHEAP.getRtpmap(), false);
+		registry.setEnabled(CHEAP.getRtpmap(), true);
+		List<AudioCodec> offered = registry.getOfferedCodecs();
+		assertEquals(Arrays.asList(EXPENSIVE.getRtpmap(), CHEAP.getRtpmap(), MODERATE.getRtpmap()),
+			Arrays.asList(offered.get(0).getRtpmap(), offered.get(1).getRtpmap(),
+			offered.get(2).getRtpmap()));
+	}
+
+	@Test
+	public void defaultRegistryKeepsDeclaredOrderAndClockRateRegistryPrefersHigherRates() {
+		List<AudioCodec> declared = AudioCodecRegistry.createDefault().getCodecs();
+		for (int index = 0; index < declared.size(); index++) {
+			assertEquals(AudioSimulationSipuadaPlugin.SupportedAudioCodec.values()[index]
+				.toAudioCodec().getRtpmap(), declared.get(index).getRtpmap());
+		}
+		List<AudioCodec> byClockRate = AudioCodecRegistry.createByClockRate().getCodecs();
+		for (int index = 1; index < byClockRate.size(); index++) {
+			assertTrue(byClockRate.get(index - 1).getClockRate()
+				>= byClockRate.get(index).getClockRate());
+		}
+	}
+
+	/**
+	 * Sets the gauge again on every change so that the sampled load is refreshed.
+	 */
+	private void setLoad(double value) {
+		load[0] = value;
+		registry.setLoadGauge(new AudioCodecRegistry.LoadGauge() {
+
+			@Override
+			public double read() {
+				return load[0];
+			}
+
+		});
+	}
+
+}
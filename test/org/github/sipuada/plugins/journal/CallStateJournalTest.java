@@ -0,0 +1,120 @@
+package org.github.sipuada.plugins.journal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import org.github.sipuada.plugins.state.CallState;
+import org.github.sipuada.plugins.state.CallStateTransition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CallStateJournalTest {
+
+	private static final int CAPACITY = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recoversLiveCallsAfterReopening() throws IOException {
+		File file = folder.newFile();
+		CallStateJournal journal = new CallStateJournal(file, CAPACITY);
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("first"));
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("second"));
+		journal.onCallStateTransition(CallStateTransition.TERMINATION, offer("first"));
+		journal.close();
+
+		journal = new CallStateJournal(file, CAPACITY);
+		assertEquals(1, journal.getLiveCalls());
+		assertEquals(3, journal.getAppendedEntries());
+		journal.close();
+	}
+
+	@Test
+	public void stopsAtCorruptedEntryAndAppendsOverIt() throws IOException {
+		File file = folder.newFile();
+		CallStateJournal journal = new CallStateJournal(file, CAPACITY);
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("first"));
+		int corruptedEntry = journal.getSize();
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("second"));
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("third"));
+		journal.close();
+		int offerLength = corruptedEntry + 4 + 3 + 4 + "second".getBytes(StandardCharsets.UTF_8).length;
+		writeInt(file, offerLength, -5);
+
+		journal = new CallStateJournal(file, CAPACITY);
+		assertEquals(1, journal.getLiveCalls());
+		assertEquals(corruptedEntry, journal.getSize());
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("fourth"));
+		journal.close();
+
+		journal = new CallStateJournal(file, CAPACITY);
+		Collection<CallState> recovered = journal.recover();
+		assertEquals(2, recovered.size());
+		assertEquals(2, journal.getAppendedEntries());
+		journal.close();
+	}
+
+	@Test
+	public void stopsAtEntryThatDoesNotMatchItsLength() throws IOException {
+		File file = folder.newFile();
+		CallStateJournal journal = new CallStateJournal(file, CAPACITY);
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("first"));
+		int corruptedEntry = journal.getSize();
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("second"));
+		journal.close();
+		writeInt(file, corruptedEntry, readInt(file, corruptedEntry) + 1);
+
+		journal = new CallStateJournal(file, CAPACITY);
+		assertEquals(1, journal.getLiveCalls());
+		assertEquals(corruptedEntry, journal.getSize());
+		journal.close();
+	}
+
+	@Test
+	public void stopsAtTruncatedEntry() throws IOException {
+		File file = folder.newFile();
+		CallStateJournal journal = new CallStateJournal(file, CAPACITY);
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("first"));
+		int truncatedEntry = journal.getSize();
+		journal.onCallStateTransition(CallStateTransition.OFFER, offer("second"));
+		journal.close();
+		try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+			truncated.setLength(truncatedEntry + 10);
+		}
+
+		journal = new CallStateJournal(file, truncatedEntry + 10);
+		assertEquals(1, journal.getLiveCalls());
+		assertEquals(truncatedEntry, journal.getSize());
+		journal.close();
+
+		journal = new CallStateJournal(file, CAPACITY);
+		assertEquals(1, journal.getLiveCalls());
+		journal.close();
+	}
+
+	private static CallState offer(String callId) {
+		return new CallState(callId, CallState.Role.CALLER, "v=0", null, false);
+	}
+
+	private static int readInt(File file, int offset) throws IOException {
+		try (RandomAccessFile journalFile = new RandomAccessFile(file, "r")) {
+			journalFile.seek(offset);
+			return journalFile.readInt();
+		}
+	}
+
+	private static void writeInt(File file, int offset, int value) throws IOException {
+		try (RandomAccessFile journalFile = new RandomAccessFile(file, "rw")) {
+			journalFile.seek(offset);
+			journalFile.writeInt(value);
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package org.github.sipuada.plugins.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void reportsZeroWhenEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMeanNanos());
+		assertEquals(0, histogram.getNanosAtPercentile(99));
+	}
+
+	@Test
+	public void recordsSmallValuesExactly() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 0; nanos < 8; nanos++) {
+			histogram.record(nanos);
+		}
+		assertEquals(8, histogram.getCount());
+		assertEquals(7, histogram.getMaxNanos());
+		assertEquals(3, histogram.getMeanNanos());
+		assertEquals(0, histogram.getNanosAtPercentile(0));
+		assertEquals(3, histogram.getNanosAtPercentile(50));
+		assertEquals(7, histogram.getNanosAtPercentile(100));
+	}
+
+	@Test
+	public void clampsNegativeValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMaxNanos());
+		assertEquals(0, histogram.getNanosAtPercentile(50));
+	}
+
+	@Test
+	public void keepsPercentilesWithinBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 1; nanos <= 1000000; nanos++) {
+			histogram.record(nanos);
+		}
+		assertEquals(500000, histogram.getMeanNanos());
+		assertEquals(1000000, histogram.getMaxNanos());
+		assertWithinPrecision(500000, histogram.getNanosAtPercentile(50));
+		assertWithinPrecision(900000, histogram.getNanosAtPercentile(90));
+		assertWithinPrecision(990000, histogram.getNanosAtPercentile(99));
+		assertEquals(1000000, histogram.getNanosAtPercentile(100));
+	}
+
+	@Test
+	public void neverReportsMoreThanMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000001);
+		assertEquals(1000001, histogram.getNanosAtPercentile(50));
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getNanosAtPercentile(100));
+	}
+
+	@Test
+	public void resetsEverything() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(42);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMaxNanos());
+		assertEquals(0, histogram.getNanosAtPercentile(50));
+	}
+
+	private static void assertWithinPrecision(long expected, long actual) {
+		assertTrue(String.format("%d is not within 12.5%% of %d", actual, expected),
+			actual >= expected && actual <= expected + expected / 8);
+	}
+
+}